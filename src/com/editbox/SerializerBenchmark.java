@@ -0,0 +1,65 @@
+package com.editbox;
+
+import com.editbox.database.serialize.BinarySerializer;
+import com.editbox.database.serialize.ByteBuf;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Measures the serialization of the {@link Example.User User} entity from the README.
+ * <p>
+ * Run with the default JVM options. Every operation is warmed up before the measurement.
+ */
+public class SerializerBenchmark {
+
+    private static final int WARMUP = 2_000_000;
+
+    private static final int ITERATIONS = 5_000_000;
+
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        BinarySerializer<Example.User> serializer = new BinarySerializer<>(Example.User.class);
+
+        Example.User user = new Example.User();
+        user.setId(UUID.randomUUID());
+        user.setName("Alex");
+        user.setCreated(LocalDateTime.now());
+
+        Example.User changedUser = new Example.User();
+        changedUser.setId(user.getId());
+        changedUser.setName("Alexander");
+        changedUser.setCreated(user.getCreated());
+        changedUser.setBlocked(true);
+
+        byte[] serializedData = serializer.fullFormat(user);
+
+        measure("fullFormat", () -> blackhole += serializer.fullFormat(user).length);
+        ByteBuf buf = new ByteBuf();
+        measure("reused buf", () -> {
+            buf.clear();
+            serializer.fullFormat(user, buf);
+            blackhole += buf.getLimit();
+        });
+        measure("fillEntry", () -> {
+            Example.User entry = new Example.User();
+            serializer.fillEntry(Example.User.class, entry, serializedData);
+            blackhole += entry.getName().length();
+        });
+        measure("formatDiff", () -> blackhole += serializer.formatDiff(user, changedUser).length);
+        System.out.println("(" + blackhole + ")");
+    }
+
+    private static void measure(String name, Runnable operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        long duration = System.nanoTime() - start;
+        System.out.printf("%-10s %8.1f ns/op%n", name, (double) duration / ITERATIONS);
+    }
+}
@@ -53,6 +53,8 @@ public class BackupScheduler {
             for (Repository repository : Database.getAllRepositories()) {
                 repository.optimizeAndBackup();
             }
+            // after the repositories, so the backup has the commits of their frames
+            Database.getTransactionLog().createBackup();
             callback.accept(BackupResult.ok(System.currentTimeMillis() - start));
         } catch (Throwable th) {
             callback.accept(BackupResult.fail(System.currentTimeMillis() - start, th));
@@ -2,9 +2,12 @@ package com.editbox.database;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import static java.io.File.separator;
@@ -19,6 +22,12 @@ public class Database {
 
     private Map<Class<? extends RepositoryAccess>, Repository> repositories;
 
+    private TransactionLog transactionLog;
+
+    private double garbageRatio = 0.5;
+
+    private long minOptimizationSize = 16 << 20;
+
     private Database(String dataPath, String backupsPath) {
         this.dataPath = dataPath;
         this.backupsPath = backupsPath;
@@ -26,6 +35,7 @@ public class Database {
         if (Files.notExists(Paths.get(dataPath))) {
             throw new RuntimeException(String.format("Database directory %s does not exist", dataPath));
         }
+        this.transactionLog = new TransactionLog(dataPath, backupsPath);
     }
 
     public static Database configure(String dataPath) {
@@ -50,6 +60,23 @@ public class Database {
         BackupScheduler.configure(backupTime, callback);
     }
 
+    /**
+     * Set the threshold of automatic repository file optimization. The file is optimized in the background
+     * when the estimated ratio of update and delete records in it exceeds the given ratio.
+     * <p>
+     * By default the optimization starts at 0.5 for files of 16 MB and larger.
+     *
+     * @param garbageRatio        ratio of update and delete records, 1 or more disables the optimization
+     * @param minOptimizationSize files smaller than this size in bytes are not optimized
+     */
+    public synchronized void enableOptimization(double garbageRatio, long minOptimizationSize) {
+        this.garbageRatio = garbageRatio;
+        this.minOptimizationSize = minOptimizationSize;
+        for (Repository repository : repositories.values()) {
+            repository.setOptimizationThreshold(garbageRatio, minOptimizationSize);
+        }
+    }
+
     /**
      * Register repository in database.
      *
@@ -68,9 +95,158 @@ public class Database {
      * @param isPersistent save data to disk
      */
     public synchronized void registerRepository(Class<? extends RepositoryAccess> type, String alias, boolean isPersistent) {
-        Repository repository = new Repository<>(type, alias, isPersistent, dataPath, backupsPath);
-        repository.restore();
-        this.repositories.put(type, repository);
+        registerRepository(new RepositoryDefinition(type, alias, isPersistent));
+    }
+
+    /**
+     * Register persistent repository in database.
+     *
+     * @param type       datatype
+     * @param alias      name of repository file
+     * @param durability when writes are forced to disk
+     */
+    public synchronized void registerRepository(Class<? extends RepositoryAccess> type, String alias, Durability durability) {
+        registerRepository(new RepositoryDefinition(type, alias, durability));
+    }
+
+    /**
+     * Register persistent repository in database.
+     *
+     * @param type       datatype
+     * @param alias      name of repository file
+     * @param durability when writes are forced to disk
+     * @param storage    where the objects are kept in memory
+     */
+    public synchronized void registerRepository(Class<? extends RepositoryAccess> type, String alias, Durability durability,
+                                                Storage storage) {
+        registerRepository(new RepositoryDefinition(type, alias, durability, storage));
+    }
+
+    private void registerRepository(RepositoryDefinition definition) {
+        Repository<?> repository = createRepository(definition);
+        try {
+            repository.restore();
+        } catch (RuntimeException e) {
+            close(List.of(repository), e);
+            throw e;
+        }
+        this.repositories.put(definition.getType(), repository);
+    }
+
+    /**
+     * Register repositories in database. Repositories are restored in parallel.
+     * <p>
+     * If a repository fails to restore, none of the repositories is registered. The repositories created
+     * by the call are closed and the error is thrown after all restores finish.
+     *
+     * @param threads     maximum number of repositories restored at the same time
+     * @param definitions definitions of repositories
+     * @return results of restore in the order of definitions
+     */
+    public synchronized List<RestoreResult> registerRepositories(int threads, RepositoryDefinition... definitions) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of threads should be positive. Threads = " + threads);
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(definitions.length, 1)), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("restore-" + threadNumber.incrementAndGet());
+            return thread;
+        });
+        try {
+            List<Future<Repository<?>>> repositories = new ArrayList<>();
+            Repository<?>[] created = new Repository<?>[definitions.length];
+            long[] durations = new long[definitions.length];
+            for (int i = 0; i < definitions.length; i++) {
+                RepositoryDefinition definition = definitions[i];
+                int index = i;
+                repositories.add(executor.submit(() -> {
+                    long start = System.currentTimeMillis();
+                    try {
+                        Repository<?> repository = createRepository(definition);
+                        created[index] = repository;
+                        repository.restore();
+                        return repository;
+                    } finally {
+                        durations[index] = System.currentTimeMillis() - start;
+                    }
+                }));
+            }
+            // all restores are waited, so that every created repository can be closed on failure
+            RuntimeException failure = null;
+            boolean isInterrupted = false;
+            for (int i = 0; i < definitions.length; i++) {
+                while (true) {
+                    try {
+                        repositories.get(i).get();
+                        break;
+                    } catch (ExecutionException e) {
+                        RuntimeException error = new RuntimeException("Error restoring repository "
+                                + definitions[i].getAlias(), e.getCause());
+                        if (failure == null) {
+                            failure = error;
+                        } else {
+                            failure.addSuppressed(error);
+                        }
+                        break;
+                    } catch (InterruptedException e) {
+                        isInterrupted = true;
+                    }
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new RuntimeException("Interrupted restoring repositories");
+                }
+            }
+            if (failure != null) {
+                close(Arrays.asList(created), failure);
+                throw failure;
+            }
+            List<RestoreResult> results = new ArrayList<>();
+            for (int i = 0; i < definitions.length; i++) {
+                RepositoryDefinition definition = definitions[i];
+                this.repositories.put(definition.getType(), created[i]);
+                results.add(RestoreResult.ok(definition.getAlias(), durations[i], created[i].size()));
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Close the repositories that failed to be registered. Errors of closing are added to the failure.
+     */
+    private static void close(Collection<Repository<?>> repositories, RuntimeException failure) {
+        for (Repository<?> repository : repositories) {
+            if (repository == null) {
+                continue;
+            }
+            try {
+                repository.close();
+            } catch (RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private Repository<?> createRepository(RepositoryDefinition definition) {
+        Repository<?> repository = new Repository<>(definition.getType(), definition.getAlias(),
+                definition.isPersistent(), definition.getDurability(), definition.getStorage(), dataPath, backupsPath);
+        repository.setOptimizationThreshold(garbageRatio, minOptimizationSize);
+        repository.setTransactionLog(transactionLog);
+        return repository;
+    }
+
+    /**
+     * Start a transaction over the repositories of the database.
+     *
+     * @return new transaction
+     */
+    public Transaction beginTransaction() {
+        return new Transaction(transactionLog);
     }
 
     public static <T extends RepositoryAccess> Repository<T> getRepository(Class<T> type) {
@@ -80,4 +256,8 @@ public class Database {
     public static Collection<Repository> getAllRepositories() {
         return instance.repositories.values();
     }
+
+    static TransactionLog getTransactionLog() {
+        return instance.transactionLog;
+    }
 }
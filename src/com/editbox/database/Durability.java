@@ -0,0 +1,75 @@
+package com.editbox.database;
+
+/**
+ * Durability guarantees of repository writes.
+ * <p>
+ * Writes of a repository are collected by its {@link Journal journal} and written to disk in batches.
+ * The durability defines when the batches are forced to the storage device.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-20
+ */
+public class Durability {
+
+    enum Mode {
+
+        /**
+         * Data is written to the file, but never forced. The operating system decides when to flush it.
+         */
+        ASYNC,
+
+        /**
+         * Data is written to the file and forced at the fixed interval.
+         */
+        PERIODIC,
+
+        /**
+         * Data is forced before the write is acknowledged. Concurrent writes share one force.
+         */
+        SYNC
+    }
+
+    private final Mode mode;
+
+    private final long interval;
+
+    private Durability(Mode mode, long interval) {
+        this.mode = mode;
+        this.interval = interval;
+    }
+
+    /**
+     * Write is acknowledged after it is passed to the operating system. The file is never forced.
+     */
+    public static Durability async() {
+        return new Durability(Mode.ASYNC, 0);
+    }
+
+    /**
+     * Write is acknowledged after it is passed to the operating system. The file is forced
+     * every {@code intervalMillis} milliseconds if it has been changed.
+     *
+     * @param intervalMillis interval between forces in milliseconds
+     */
+    public static Durability periodic(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval should be positive. Interval = " + intervalMillis);
+        }
+        return new Durability(Mode.PERIODIC, intervalMillis);
+    }
+
+    /**
+     * Write is acknowledged after the file is forced to the storage device.
+     */
+    public static Durability sync() {
+        return new Durability(Mode.SYNC, 0);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+}
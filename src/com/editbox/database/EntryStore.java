@@ -0,0 +1,44 @@
+package com.editbox.database;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Storage of the readonly objects of a repository.
+ * <p>
+ * Reads do not lock. Writes of different entries can be called concurrently, writes of an entry are
+ * called by one thread at a time.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-02
+ */
+interface EntryStore<E extends RepositoryAccess> {
+
+    /**
+     * Return the readonly object or {@code null}.
+     */
+    E get(UUID id);
+
+    boolean containsKey(UUID id);
+
+    /**
+     * Store the readonly object. The stored object replaces the previous object with the same id.
+     */
+    void put(UUID id, E entry);
+
+    void remove(UUID id);
+
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * Return the weakly consistent view of the objects.
+     */
+    Collection<E> values();
+
+    /**
+     * Tells whether {@link #get(UUID)} returns the stored instance, so it can be changed in place.
+     */
+    boolean isInstanceStored();
+}
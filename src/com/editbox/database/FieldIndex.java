@@ -0,0 +1,170 @@
+package com.editbox.database;
+
+import com.editbox.database.annotation.Index;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary index of repository by the value of a field annotated with {@link Index}.
+ * <p>
+ * The index maps field values to uuids of entries. Null values are not indexed. The index can be read
+ * concurrently with writes, so the found entries should be checked by {@link #matches(Object, Object)}.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-02
+ */
+class FieldIndex {
+
+    private final String name;
+
+    private final MethodHandle getter;
+
+    private final ConcurrentMap<Object, Set<UUID>> values;
+
+    /**
+     * Locks of the sets of ids striped by the value. Writers of different entries can change the set
+     * of the same value, and a set removed when it becomes empty must not get new ids. Sorted indexes
+     * have one lock, because equal values by the order can have different hash codes.
+     */
+    private final Object[] locks;
+
+    FieldIndex(Field field) {
+        this.name = field.getName();
+        if (field.getType().isArray()) {
+            throw new RuntimeException("Field '" + name + "' of type " + field.getType().getName() + " cannot be indexed");
+        }
+        Index.Type type = field.getAnnotation(Index.class).value();
+        if (type == Index.Type.SORTED && !field.getType().isPrimitive()
+                && !Comparable.class.isAssignableFrom(field.getType())) {
+            throw new RuntimeException("Field '" + name + "' of type " + field.getType().getName()
+                    + " is not comparable and cannot have sorted index");
+        }
+        try {
+            field.setAccessible(true);
+            this.getter = MethodHandles.lookup().unreflectGetter(field)
+                    .asType(MethodType.methodType(Object.class, Object.class));
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        this.values = type == Index.Type.SORTED ? new ConcurrentSkipListMap<>() : new ConcurrentHashMap<>();
+        this.locks = new Object[type == Index.Type.SORTED ? 1 : 64];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isSorted() {
+        return values instanceof ConcurrentNavigableMap;
+    }
+
+    /**
+     * Return the field value of the entry.
+     */
+    Object get(Object entry) {
+        try {
+            return (Object) getter.invokeExact(entry);
+        } catch (Throwable th) {
+            throw new RuntimeException(th);
+        }
+    }
+
+    void add(RepositoryAccess entry) {
+        Object value = get(entry);
+        if (value == null) {
+            return;
+        }
+        UUID id = entry.getId();
+        synchronized (lockFor(value)) {
+            values.computeIfAbsent(value, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    void remove(RepositoryAccess entry) {
+        Object value = get(entry);
+        if (value == null) {
+            return;
+        }
+        UUID id = entry.getId();
+        synchronized (lockFor(value)) {
+            Set<UUID> ids = values.get(value);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                values.remove(value);
+            }
+        }
+    }
+
+    private Object lockFor(Object value) {
+        int hash = value.hashCode();
+        return locks[(hash ^ hash >>> 16) & (locks.length - 1)];
+    }
+
+    /**
+     * Move the entry from the old value to the new value, if the value is changed.
+     */
+    void update(RepositoryAccess oldEntry, RepositoryAccess newEntry) {
+        if (!Objects.equals(get(oldEntry), get(newEntry))) {
+            add(newEntry);
+            remove(oldEntry);
+        }
+    }
+
+    /**
+     * Return uuids of entries with the given value.
+     */
+    Collection<UUID> find(Object value) {
+        Set<UUID> ids = values.get(value);
+        return ids == null ? Collections.emptySet() : ids;
+    }
+
+    /**
+     * Return uuids of entries with values from {@code from} inclusive to {@code to} exclusive
+     * in the order of values. Null bound means the range is not limited.
+     */
+    Collection<UUID> range(Object from, Object to) {
+        ConcurrentNavigableMap<Object, Set<UUID>> range = (ConcurrentNavigableMap<Object, Set<UUID>>) values;
+        if (from != null && to != null) {
+            range = range.subMap(from, true, to, false);
+        } else if (from != null) {
+            range = range.tailMap(from, true);
+        } else if (to != null) {
+            range = range.headMap(to, false);
+        }
+        List<UUID> ids = new ArrayList<>();
+        for (Set<UUID> valueIds : range.values()) {
+            ids.addAll(valueIds);
+        }
+        return ids;
+    }
+
+    /**
+     * Check the current field value of the entry is equal to the given value.
+     */
+    boolean matches(Object entry, Object value) {
+        return value.equals(get(entry));
+    }
+
+    /**
+     * Check the current field value of the entry is in the given range.
+     */
+    @SuppressWarnings("unchecked")
+    boolean matches(Object entry, Object from, Object to) {
+        Comparable<Object> value = (Comparable<Object>) get(entry);
+        return value != null && (from == null || value.compareTo(from) >= 0) && (to == null || value.compareTo(to) < 0);
+    }
+
+    void clear() {
+        values.clear();
+    }
+}
@@ -0,0 +1,288 @@
+package com.editbox.database;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the objects in the heap. The objects are stored and returned as is.
+ * <p>
+ * While snapshots are open, a write stores a version of the entry that links to the previous states,
+ * and a removed entry is replaced with a version without an object. A snapshot reads the latest version
+ * that is not newer than the snapshot. The states not needed by the oldest snapshot are unlinked on the
+ * next write of the entry and when the oldest snapshot is closed. Then the versions read by all snapshots
+ * are replaced with the objects, and when the last snapshot is closed all entries are stored as is again.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-02
+ */
+class HeapStore<E extends RepositoryAccess> implements SnapshotStore<E> {
+
+    private static final long NO_SNAPSHOTS = -1;
+
+    /**
+     * Objects or {@link Version versions}.
+     */
+    private final UuidMap<Object> entries = new UuidMap<>();
+
+    /**
+     * The number of versions of removed entries.
+     */
+    private final AtomicInteger removedCount = new AtomicInteger();
+
+    /**
+     * The number of the last version.
+     */
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    /**
+     * The number of open snapshots by their versions.
+     */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+
+    /**
+     * The version of the oldest open snapshot or {@link #NO_SNAPSHOTS}.
+     */
+    private volatile long oldestSnapshot = NO_SNAPSHOTS;
+
+    /**
+     * Ids of the entries stored as {@link Version versions}, every id once.
+     */
+    private final Queue<UUID> versionedIds = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public E get(UUID id) {
+        return current(entries.get(id));
+    }
+
+    @Override
+    public boolean containsKey(UUID id) {
+        return get(id) != null;
+    }
+
+    @Override
+    public void put(UUID id, E entry) {
+        if (oldestSnapshot == NO_SNAPSHOTS) {
+            if (isRemoved(entries.put(id, entry))) {
+                removedCount.decrementAndGet();
+            }
+        } else {
+            putVersion(id, entry);
+        }
+    }
+
+    @Override
+    public void remove(UUID id) {
+        if (oldestSnapshot == NO_SNAPSHOTS) {
+            if (isRemoved(entries.remove(id))) {
+                removedCount.decrementAndGet();
+            }
+        } else if (get(id) != null) {
+            putVersion(id, null);
+        }
+    }
+
+    @Override
+    public int size() {
+        return entries.size() - removedCount.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public Collection<E> values() {
+        return new View((msb, lsb, value) -> current(value));
+    }
+
+    @Override
+    public boolean isInstanceStored() {
+        return true;
+    }
+
+    @Override
+    public synchronized long openSnapshot() {
+        long version = lastVersion.get();
+        snapshots.merge(version, 1, Integer::sum);
+        oldestSnapshot = snapshots.firstKey();
+        return version;
+    }
+
+    @Override
+    public E get(UUID id, long snapshot) {
+        return atVersion(entries.get(id), snapshot);
+    }
+
+    @Override
+    public Collection<E> values(long snapshot) {
+        return new View((msb, lsb, value) -> atVersion(value, snapshot));
+    }
+
+    @Override
+    public synchronized void closeSnapshot(long snapshot) {
+        if (snapshots.merge(snapshot, -1, Integer::sum) == 0) {
+            snapshots.remove(snapshot);
+        }
+        long oldest = snapshots.isEmpty() ? NO_SNAPSHOTS : snapshots.firstKey();
+        if (oldest == oldestSnapshot) {
+            return;
+        }
+        oldestSnapshot = oldest;
+        // the states older than the oldest snapshot are released, the writers store objects as is
+        // if no snapshots are open
+        Iterator<UUID> iterator = versionedIds.iterator();
+        while (iterator.hasNext()) {
+            UUID id = iterator.next();
+            Object value = entries.get(id);
+            Version version = (Version) value;
+            if (oldest == NO_SNAPSHOTS || version.number <= oldest) {
+                // every snapshot reads the last version, it is replaced with the object
+                if (version.entry == null) {
+                    if (entries.remove(id, value)) {
+                        removedCount.decrementAndGet();
+                    }
+                } else {
+                    entries.replace(id, value, version.entry);
+                }
+                iterator.remove();
+            } else {
+                unlinkOlder(version, oldest);
+            }
+        }
+    }
+
+    /**
+     * Store the new version of the entry and unlink the versions not needed by the snapshots.
+     *
+     * @param entry the object or {@code null} if the entry is removed
+     */
+    private void putVersion(UUID id, E entry) {
+        Object previous = entries.get(id);
+        if (previous instanceof Version) {
+            unlinkOlder((Version) previous, oldestSnapshot);
+        } else {
+            // an id is queued once, while its value is a version
+            versionedIds.add(id);
+        }
+        entries.put(id, new Version(entry, lastVersion.incrementAndGet(), previous));
+        if (entry == null && !isRemoved(previous)) {
+            removedCount.incrementAndGet();
+        } else if (entry != null && isRemoved(previous)) {
+            removedCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Unlink the states of the chain that are older than the latest version not newer than the oldest snapshot.
+     */
+    private static void unlinkOlder(Version version, long oldest) {
+        Object value = version;
+        while (value instanceof Version) {
+            Version current = (Version) value;
+            if (current.number <= oldest) {
+                // every snapshot reads this version or a later one
+                current.previous = null;
+                return;
+            }
+            value = current.previous;
+        }
+    }
+
+    private static boolean isRemoved(Object value) {
+        return value instanceof Version && ((Version) value).entry == null;
+    }
+
+    /**
+     * Return the current object of the stored value.
+     */
+    private static <E> E current(Object value) {
+        if (value instanceof Version) {
+            return cast(((Version) value).entry);
+        }
+        return cast(value);
+    }
+
+    /**
+     * Return the object of the stored value in the snapshot with the given version.
+     * Objects stored as is are older than all snapshots.
+     */
+    private static <E> E atVersion(Object value, long snapshot) {
+        while (value instanceof Version) {
+            Version version = (Version) value;
+            if (version.number <= snapshot) {
+                return cast(version.entry);
+            }
+            value = version.previous;
+        }
+        return cast(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E cast(Object value) {
+        return (E) value;
+    }
+
+    /**
+     * State of an entry written while snapshots are open.
+     */
+    private static class Version {
+
+        /**
+         * The object or {@code null} if the entry is removed.
+         */
+        private final Object entry;
+
+        private final long number;
+
+        /**
+         * The previous state: a version, an object stored as is or {@code null} if the entry did not exist.
+         * It is unlinked when no snapshot needs it.
+         */
+        private volatile Object previous;
+
+        private Version(Object entry, long number, Object previous) {
+            this.entry = entry;
+            this.number = number;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * View of the objects mapped from the stored values. Values mapped to {@code null} are skipped.
+     */
+    private class View extends AbstractCollection<E> {
+
+        private final UuidMap.EntryMapper<Object, E> mapper;
+
+        private View(UuidMap.EntryMapper<Object, E> mapper) {
+            this.mapper = mapper;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return Spliterators.iterator(spliterator());
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return entries.spliterator(mapper);
+        }
+
+        @Override
+        public void forEach(Consumer<? super E> action) {
+            spliterator().forEachRemaining(action);
+        }
+
+        /**
+         * Return the current number of objects. In a snapshot it is an estimate.
+         */
+        @Override
+        public int size() {
+            return HeapStore.this.size();
+        }
+    }
+}
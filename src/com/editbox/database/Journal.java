@@ -0,0 +1,335 @@
+package com.editbox.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only repository file with group commit.
+ * <p>
+ * Records are queued by the writing threads and written by the journal thread. All records
+ * queued while the previous batch was written are written with one gather write and,
+ * depending on {@link Durability durability}, one force. The records are written in the order
+ * of {@link #append(byte[], int, int)} calls.
+ * <p>
+ * The records are copied to direct buffers when they are queued, consecutive records share a buffer.
+ * The buffers are reused after the batch is written, so the writing threads can reuse their arrays and
+ * the channel does not copy the records to temporary direct buffers.
+ * <p>
+ * The futures of a batch are completed on a completion thread, not on the journal thread, so the actions
+ * depending on them can write to the journals and wait for the writes.
+ * <p>
+ * After an I/O error the journal rejects all subsequent records: queueing a record throws, so the writers
+ * can check the journal before they change the objects in memory.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-20
+ */
+class Journal {
+
+    private static final int BUFFER_SIZE = 256 << 10;
+
+    /**
+     * Maximum number of free buffers kept for the next batches.
+     */
+    private static final int MAX_FREE_BUFFERS = 4;
+
+    /**
+     * Threads completing the futures of the written batches. A thread blocked by a dependent action
+     * does not delay the completion of other batches.
+     */
+    private static final ExecutorService completion = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "journal completion");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String path;
+
+    private final Durability durability;
+
+    private final FileChannel channel;
+
+    private final Thread thread;
+
+    /**
+     * Buffers of the queued records in the order of the records. They are in the write mode.
+     */
+    private List<ByteBuffer> pending = new ArrayList<>();
+
+    /**
+     * The last pending buffer, if the next records can be added to it.
+     */
+    private ByteBuffer open;
+
+    private List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+    private boolean isForceRequested;
+
+    private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+    private boolean closed;
+
+    private IOException failure;
+
+    /**
+     * The file size after all queued records are written.
+     */
+    private long end;
+
+    /**
+     * The file size after the last written batch. The file is never cut inside a record at this position.
+     */
+    private volatile long written;
+
+    Journal(String path, Durability durability) {
+        this.path = path;
+        this.durability = durability;
+        try {
+            this.channel = FileChannel.open(Paths.get(path), CREATE, READ, WRITE);
+            this.channel.position(channel.size());
+            this.end = channel.size();
+            this.written = end;
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening repository file " + path, e);
+        }
+        this.thread = new Thread(this::run);
+        this.thread.setName("journal " + Paths.get(path).getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue the record for writing. The record is copied, so the array can be changed when the method returns.
+     *
+     * @param array  the array containing the record
+     * @param offset the offset of the record in the array
+     * @param length the length of the record
+     * @return a future that is completed when the record is written with the journal durability
+     * @throws RuntimeException if the journal has failed or is closed
+     */
+    CompletableFuture<Void> append(byte[] array, int offset, int length) {
+        return enqueue(array, offset, length, false);
+    }
+
+    /**
+     * Queue the record for writing and force the file after it regardless of the durability.
+     * The record is copied, so the array can be changed when the method returns.
+     *
+     * @return a future that is completed when the record is written and forced
+     * @throws RuntimeException if the journal has failed or is closed
+     */
+    CompletableFuture<Void> appendAndForce(byte[] array, int offset, int length) {
+        return enqueue(array, offset, length, true);
+    }
+
+    /**
+     * Write all queued records and force the file regardless of the durability.
+     *
+     * @return the file size after the written records
+     */
+    long flush() {
+        await(enqueue(null, 0, 0, true));
+        return written;
+    }
+
+    /**
+     * Cut the file to the given size, the following writes are appended at it. It is called before any record
+     * is queued, to remove the incomplete record left by a crash.
+     *
+     * @param size the new file size
+     */
+    void truncate(long size) {
+        flush();
+        synchronized (this) {
+            try {
+                channel.truncate(size);
+                channel.position(size);
+                channel.force(false);
+                end = size;
+                written = size;
+            } catch (IOException e) {
+                throw new RuntimeException("Error truncating repository file " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Return the file size after all queued records are written.
+     */
+    synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Flush the journal, stop the journal thread and close the file.
+     */
+    void close() {
+        try {
+            flush();
+        } finally {
+            // the file is closed even if the journal has failed
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                thread.join();
+                channel.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new RuntimeException("Error closing repository file " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Wait for the completion of the write.
+     *
+     * @param future a future returned by the journal
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private synchronized CompletableFuture<Void> enqueue(byte[] array, int offset, int length, boolean force) {
+        if (failure != null) {
+            throw new RuntimeException("Error writing repository file " + path, failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Journal " + path + " is closed");
+        }
+        if (length > 0) {
+            if (open == null || open.remaining() < length) {
+                if (length > BUFFER_SIZE) {
+                    pending.add(ByteBuffer.allocate(length));
+                    open = null;
+                } else {
+                    open = freeBuffers.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE) : freeBuffers.poll();
+                    pending.add(open);
+                }
+            }
+            pending.get(pending.size() - 1).put(array, offset, length);
+        }
+        end += length;
+        isForceRequested |= force;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        futures.add(future);
+        if (futures.size() == 1) {
+            notifyAll();
+        }
+        return future;
+    }
+
+    private void run() {
+        boolean isPeriodic = durability.getMode() == Durability.Mode.PERIODIC;
+        boolean isSync = durability.getMode() == Durability.Mode.SYNC;
+        long lastForce = System.currentTimeMillis();
+        boolean dirty = false;
+        while (true) {
+            List<ByteBuffer> buffers;
+            List<CompletableFuture<Void>> batch;
+            boolean force;
+            synchronized (this) {
+                while (futures.isEmpty() && !closed) {
+                    long timeout = 0;
+                    if (isPeriodic && dirty) {
+                        timeout = lastForce + durability.getInterval() - System.currentTimeMillis();
+                        if (timeout <= 0) {
+                            break;
+                        }
+                    }
+                    try {
+                        wait(timeout);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (futures.isEmpty() && closed) {
+                    return;
+                }
+                buffers = pending;
+                batch = futures;
+                force = isForceRequested;
+                pending = new ArrayList<>();
+                futures = new ArrayList<>();
+                open = null;
+                isForceRequested = false;
+            }
+            try {
+                force |= isSync || isPeriodic && System.currentTimeMillis() - lastForce >= durability.getInterval();
+                for (ByteBuffer buffer : buffers) {
+                    buffer.flip();
+                }
+                dirty |= !buffers.isEmpty();
+                write(buffers.toArray(new ByteBuffer[0]));
+                written = channel.position();
+                if (force && dirty) {
+                    channel.force(false);
+                    lastForce = System.currentTimeMillis();
+                    dirty = false;
+                }
+                synchronized (this) {
+                    for (ByteBuffer buffer : buffers) {
+                        if (buffer.isDirect() && freeBuffers.size() < MAX_FREE_BUFFERS) {
+                            freeBuffers.add(buffer.clear());
+                        }
+                    }
+                }
+                completion.execute(() -> {
+                    for (CompletableFuture<Void> future : batch) {
+                        future.complete(null);
+                    }
+                });
+            } catch (IOException e) {
+                List<CompletableFuture<Void>> rejected;
+                synchronized (this) {
+                    failure = e;
+                    rejected = futures;
+                    futures = new ArrayList<>();
+                    pending = new ArrayList<>();
+                    open = null;
+                }
+                completion.execute(() -> {
+                    for (CompletableFuture<Void> future : batch) {
+                        future.completeExceptionally(e);
+                    }
+                    for (CompletableFuture<Void> future : rejected) {
+                        future.completeExceptionally(e);
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    private void write(ByteBuffer[] buffers) throws IOException {
+        int offset = 0;
+        while (offset < buffers.length) {
+            channel.write(buffers, offset, buffers.length - offset);
+            while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.editbox.database;
+
+import com.editbox.database.serialize.ByteReader;
+import com.editbox.database.serialize.Schema;
+
+import java.util.UUID;
+
+/**
+ * Record of repository file.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-29
+ */
+class LogRecord {
+
+    private final RepositoryOperation operation;
+
+    private final UUID id;
+
+    private final byte[] data;
+
+    private final Schema schema;
+
+    LogRecord(RepositoryOperation operation, UUID id, byte[] data, Schema schema) {
+        this.operation = operation;
+        this.id = id;
+        this.data = data;
+        this.schema = schema;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @param buf    reader positioned at the beginning of a record
+     * @param schema the schema of the data, that is the schema of the last schema record before the record
+     * @return the record
+     */
+    static LogRecord read(ByteReader buf, Schema schema) {
+        RepositoryOperation operation = RepositoryOperation.fromCode(buf.getByte());
+        UUID id = new UUID(buf.getLong(), buf.getLong());
+        byte[] data = null;
+        if (operation != RepositoryOperation.DELETE) {
+            int bytesForLength = buf.getByte();
+            int dataSize = buf.getInt(bytesForLength);
+            data = buf.getArray(dataSize);
+        }
+        return new LogRecord(operation, id, data, schema);
+    }
+
+    RepositoryOperation getOperation() {
+        return operation;
+    }
+
+    UUID getId() {
+        return id;
+    }
+
+    /**
+     * Return serialized entry for insert, serialized changes for update and serialized schema
+     * for schema record. Delete record has no data.
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Return number of bytes of the record in the file.
+     */
+    int getSize() {
+        if (data == null) {
+            return 1 + 16;
+        }
+        return 1 + 16 + 1 + (data.length <= Byte.MAX_VALUE ? 1 : data.length <= Short.MAX_VALUE ? 2 : 4) + data.length;
+    }
+}
@@ -0,0 +1,348 @@
+package com.editbox.database;
+
+import com.editbox.database.serialize.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the objects in the binary format in direct memory.
+ * <p>
+ * The records are appended to chunks of direct memory, and the map of the heap keeps only the location
+ * of the record of every entry. A record is never changed, an update appends a new record. When the live
+ * records of a chunk take half of it or less, they are moved to the current chunk and the chunk is released.
+ * A read that finds the chunk released takes the new location from the map.
+ * <p>
+ * Every read creates a new object, unless the object of the same record is in the cache. The cache is
+ * direct-mapped by the entry id, so an updated entry replaces its previous object in the cache.
+ * <p>
+ * Snapshots are not supported, the storage does not keep the previous states of the objects.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-02
+ */
+class OffHeapStore<E extends RepositoryAccess> implements EntryStore<E> {
+
+    /**
+     * Record header: two halves of the id, the length of the data and the version of the object.
+     */
+    private static final int HEADER_SIZE = 8 + 8 + 4 + 8;
+
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    private static final int MAX_CHUNK_SIZE = 64 << 20;
+
+    private final Codec<E> codec;
+
+    private final UuidMap<Long> locations = new UuidMap<>();
+
+    private volatile ChunkTable chunks = new ChunkTable(0, new Chunk[0]);
+
+    private final Object[] cache;
+
+    /**
+     * Buffer for encoding the objects. It is used by the writers.
+     */
+    private final ByteBuf encoded = new ByteBuf();
+
+    /**
+     * The chunk for new records.
+     */
+    private Chunk current;
+
+    private int nextChunkIndex;
+
+    private long allocatedBytes;
+
+    OffHeapStore(Codec<E> codec, int cacheSize) {
+        this.codec = codec;
+        int capacity = 1;
+        while (capacity < cacheSize) {
+            capacity <<= 1;
+        }
+        this.cache = cacheSize == 0 ? null : new Object[capacity];
+    }
+
+    @Override
+    public E get(UUID id) {
+        while (true) {
+            Long location = locations.get(id);
+            if (location == null) {
+                return null;
+            }
+            E entry = read(id, location);
+            if (entry != null) {
+                return entry;
+            }
+            // the record was moved, the map has the new location
+        }
+    }
+
+    @Override
+    public boolean containsKey(UUID id) {
+        return locations.containsKey(id);
+    }
+
+    @Override
+    public synchronized void put(UUID id, E entry) {
+        encoded.clear();
+        codec.encode(entry, encoded);
+        long location = reserve(id.getMostSignificantBits(), id.getLeastSignificantBits(), encoded.getLimit(),
+                entry.version);
+        current.buffer.put(offset(location) + HEADER_SIZE, encoded.array(), 0, encoded.getLimit());
+        Long previous = locations.put(id, location);
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    @Override
+    public synchronized void remove(UUID id) {
+        Long previous = locations.remove(id);
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    @Override
+    public int size() {
+        return locations.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return locations.isEmpty();
+    }
+
+    @Override
+    public Collection<E> values() {
+        return new AbstractCollection<>() {
+
+            @Override
+            public Iterator<E> iterator() {
+                return Spliterators.iterator(spliterator());
+            }
+
+            @Override
+            public Spliterator<E> spliterator() {
+                return locations.spliterator((msb, lsb, location) -> {
+                    UUID id = new UUID(msb, lsb);
+                    E entry = read(id, location);
+                    return entry != null ? entry : get(id);
+                });
+            }
+
+            @Override
+            public void forEach(Consumer<? super E> action) {
+                spliterator().forEachRemaining(action);
+            }
+
+            @Override
+            public int size() {
+                return OffHeapStore.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return OffHeapStore.this.isEmpty();
+            }
+        };
+    }
+
+    @Override
+    public boolean isInstanceStored() {
+        return false;
+    }
+
+    /**
+     * Return the object of the record or {@code null} if the chunk of the record is released.
+     */
+    private E read(UUID id, long location) {
+        int slot = 0;
+        if (cache != null) {
+            slot = id.hashCode() & (cache.length - 1);
+            Object cached = cache[slot];
+            if (cached != null && ((CachedEntry) cached).location == location) {
+                return cast(((CachedEntry) cached).entry);
+            }
+        }
+        Chunk chunk = chunks.get(chunkIndex(location));
+        if (chunk == null) {
+            return null;
+        }
+        int offset = offset(location);
+        byte[] data = new byte[chunk.buffer.getInt(offset + 16)];
+        chunk.buffer.get(offset + HEADER_SIZE, data);
+        E entry = codec.decode(id, data);
+        entry.version = chunk.buffer.getLong(offset + 20);
+        if (cache != null) {
+            cache[slot] = new CachedEntry(location, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Write the header of the record to the current chunk and return the location of the record.
+     * The data should be written by the caller.
+     */
+    private long reserve(long msb, long lsb, int length, long version) {
+        int size = HEADER_SIZE + length;
+        if (current == null || current.buffer.capacity() - current.end < size) {
+            int capacity = (int) Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, allocatedBytes));
+            current = allocate(Math.max(capacity, size));
+        }
+        ByteBuffer buffer = current.buffer;
+        int offset = current.end;
+        buffer.putLong(offset, msb);
+        buffer.putLong(offset + 8, lsb);
+        buffer.putInt(offset + 16, length);
+        buffer.putLong(offset + 20, version);
+        current.end += size;
+        current.live += size;
+        return (long) current.index << 32 | offset;
+    }
+
+    /**
+     * Account the record that is not needed anymore and move the chunk if it has too little live records.
+     */
+    private void release(long location) {
+        Chunk chunk = chunks.get(chunkIndex(location));
+        chunk.live -= HEADER_SIZE + chunk.buffer.getInt(offset(location) + 16);
+        if (chunk != current && chunk.live <= chunk.end / 2) {
+            evacuate(chunk);
+        }
+    }
+
+    /**
+     * Move the live records of the chunk to the current chunk and release the chunk.
+     */
+    private void evacuate(Chunk chunk) {
+        ByteBuffer buffer = chunk.buffer;
+        int offset = 0;
+        while (offset < chunk.end) {
+            long msb = buffer.getLong(offset);
+            long lsb = buffer.getLong(offset + 8);
+            int length = buffer.getInt(offset + 16);
+            UUID id = new UUID(msb, lsb);
+            Long location = locations.get(id);
+            if (location != null && location == ((long) chunk.index << 32 | offset)) {
+                long newLocation = reserve(msb, lsb, length, buffer.getLong(offset + 20));
+                ByteBuffer source = buffer.duplicate();
+                source.limit(offset + HEADER_SIZE + length).position(offset + HEADER_SIZE);
+                current.buffer.duplicate().position(offset(newLocation) + HEADER_SIZE).put(source);
+                locations.put(id, newLocation);
+            }
+            offset += HEADER_SIZE + length;
+        }
+        ChunkTable table = chunks;
+        Chunk[] newChunks = table.chunks.clone();
+        newChunks[chunk.index - table.base] = null;
+        int first = 0;
+        while (first < newChunks.length && newChunks[first] == null) {
+            first++;
+        }
+        chunks = new ChunkTable(table.base + first, Arrays.copyOfRange(newChunks, first, newChunks.length));
+        allocatedBytes -= buffer.capacity();
+    }
+
+    private Chunk allocate(int capacity) {
+        Chunk chunk = new Chunk(nextChunkIndex++, ByteBuffer.allocateDirect(capacity));
+        ChunkTable table = chunks;
+        int base = table.chunks.length == 0 ? chunk.index : table.base;
+        Chunk[] newChunks = Arrays.copyOf(table.chunks, chunk.index - base + 1);
+        newChunks[chunk.index - base] = chunk;
+        chunks = new ChunkTable(base, newChunks);
+        allocatedBytes += capacity;
+        return chunk;
+    }
+
+    private static int chunkIndex(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E cast(Object entry) {
+        return (E) entry;
+    }
+
+    /**
+     * Conversion of the objects to the binary format.
+     */
+    interface Codec<E> {
+
+        /**
+         * Write the object at the position of the buffer.
+         */
+        void encode(E entry, ByteBuf buf);
+
+        /**
+         * Return the readonly object.
+         */
+        E decode(UUID id, byte[] data);
+    }
+
+    private static class Chunk {
+
+        private final int index;
+
+        private final ByteBuffer buffer;
+
+        /**
+         * The offset after the last record. It is changed only by the writers.
+         */
+        private int end;
+
+        /**
+         * The number of bytes of the live records. It is changed only by the writers.
+         */
+        private long live;
+
+        private Chunk(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The chunks that are not released, by the index from {@code base}. It is never changed after publication.
+     */
+    private static class ChunkTable {
+
+        private final int base;
+
+        private final Chunk[] chunks;
+
+        private ChunkTable(int base, Chunk[] chunks) {
+            this.base = base;
+            this.chunks = chunks;
+        }
+
+        private Chunk get(int index) {
+            int i = index - base;
+            return i >= 0 && i < chunks.length ? chunks[i] : null;
+        }
+    }
+
+    private static class CachedEntry {
+
+        private final long location;
+
+        private final Object entry;
+
+        private CachedEntry(long location, Object entry) {
+            this.location = location;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.editbox.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Replay of repository file records on several threads.
+ * <p>
+ * Records are routed to partitions by the hash of the entry uuid, so all records of an entry are
+ * applied by the same thread in the file order. Records of different entries are independent.
+ * The records are passed to the partitions in batches through bounded queues, so the memory used
+ * does not depend on the file size.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-29
+ */
+class ParallelReplay {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private static final int QUEUE_CAPACITY = 16;
+
+    private static final List<LogRecord> END = new ArrayList<>();
+
+    private final Consumer<LogRecord> applier;
+
+    private final List<BlockingQueue<List<LogRecord>>> queues = new ArrayList<>();
+
+    private final List<List<LogRecord>> batches = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private volatile Throwable failure;
+
+    /**
+     * Start the partition threads.
+     *
+     * @param name       prefix of the thread names
+     * @param partitions number of partitions
+     * @param applier    applies a record to the repository, it is called concurrently for different entries
+     */
+    ParallelReplay(String name, int partitions, Consumer<LogRecord> applier) {
+        this.applier = applier;
+        for (int i = 0; i < partitions; i++) {
+            BlockingQueue<List<LogRecord>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            batches.add(new ArrayList<>(BATCH_SIZE));
+            Thread thread = new Thread(() -> run(queue));
+            thread.setName(name + "-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Pass the record to its partition.
+     */
+    void submit(LogRecord record) {
+        int partition = Math.floorMod(record.getId().hashCode(), batches.size());
+        List<LogRecord> batch = batches.get(partition);
+        batch.add(record);
+        if (batch.size() == BATCH_SIZE) {
+            put(partition, batch);
+            batches.set(partition, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * Wait until all submitted records are applied and stop the partition threads.
+     */
+    void finish() {
+        for (int i = 0; i < batches.size(); i++) {
+            if (!batches.get(i).isEmpty()) {
+                put(i, batches.get(i));
+            }
+            put(i, END);
+        }
+        join();
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * Stop the partition threads without waiting for the submitted records.
+     */
+    void cancel() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        join();
+    }
+
+    private void put(int partition, List<LogRecord> batch) {
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+        try {
+            queues.get(partition).put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void join() {
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void run(BlockingQueue<List<LogRecord>> queue) {
+        try {
+            while (true) {
+                List<LogRecord> batch = queue.take();
+                if (batch == END) {
+                    return;
+                }
+                if (failure == null) {
+                    for (LogRecord record : batch) {
+                        applier.accept(record);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancelled
+        } catch (Throwable th) {
+            failure = th;
+            // keep taking batches, so the reading thread is not blocked on a full queue
+            drain(queue);
+        }
+    }
+
+    private void drain(BlockingQueue<List<LogRecord>> queue) {
+        try {
+            while (queue.take() != END) {
+                // skip
+            }
+        } catch (InterruptedException e) {
+            // cancelled
+        }
+    }
+}
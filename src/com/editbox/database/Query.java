@@ -0,0 +1,216 @@
+package com.editbox.database;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Query over the readonly instances of a repository.
+ * <p>
+ * The query scans the instances without copying them and without locking the repository. Large repositories
+ * are split into chunks and scanned in parallel on the common fork-join pool.
+ * Use the instances only for reading! Do not use setters and subsequent update!
+ * <p>
+ * The query is not thread-safe, but it can be executed many times.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-30
+ */
+public class Query<E extends RepositoryAccess> {
+
+    /**
+     * The number of instances from which the query is executed in parallel.
+     */
+    static final int PARALLEL_SIZE = 10_000;
+
+    private final Collection<E> values;
+
+    private Predicate<? super E> filter;
+
+    private Comparator<? super E> order;
+
+    private int limit = -1;
+
+    Query(Collection<E> values) {
+        this.values = values;
+    }
+
+    /**
+     * Add the condition. The conditions are combined with AND.
+     *
+     * @param condition the condition
+     * @return this query
+     */
+    public Query<E> where(Predicate<? super E> condition) {
+        Objects.requireNonNull(condition);
+        if (filter == null) {
+            filter = condition;
+        } else {
+            Predicate<? super E> previous = filter;
+            filter = entry -> previous.test(entry) && condition.test(entry);
+        }
+        return this;
+    }
+
+    /**
+     * Set the order of the result. Without the order the result is unordered.
+     *
+     * @param comparator the comparator
+     * @return this query
+     */
+    public Query<E> orderBy(Comparator<? super E> comparator) {
+        this.order = Objects.requireNonNull(comparator);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of instances in the result. With the order the first instances are returned,
+     * they are selected without sorting all matching instances.
+     *
+     * @param maxSize the maximum number of instances
+     * @return this query
+     */
+    public Query<E> limit(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid limit " + maxSize);
+        }
+        this.limit = maxSize;
+        return this;
+    }
+
+    /**
+     * Return the matching instances.
+     *
+     * @return list of instances
+     */
+    public List<E> list() {
+        if (limit == 0) {
+            return new ArrayList<>();
+        }
+        Stream<E> stream = matching();
+        if (order != null && limit > 0) {
+            return stream.collect(top(order, limit));
+        }
+        if (order != null) {
+            stream = stream.sorted(order);
+        }
+        if (limit > 0) {
+            stream = stream.limit(limit);
+        }
+        return stream.collect(Collectors.toList());
+    }
+
+    /**
+     * Return the given projection of the matching instances.
+     *
+     * @param projection the function returning the value for the instance
+     * @return list of values in the order of the instances
+     */
+    public <R> List<R> select(Function<? super E, ? extends R> projection) {
+        if (order != null) {
+            List<E> entries = list();
+            List<R> result = new ArrayList<>(entries.size());
+            for (E entry : entries) {
+                result.add(projection.apply(entry));
+            }
+            return result;
+        }
+        Stream<E> stream = matching();
+        if (limit >= 0) {
+            stream = stream.limit(limit);
+        }
+        return stream.map(projection).collect(Collectors.toList());
+    }
+
+    /**
+     * Return the number of matching instances. The limit is ignored.
+     *
+     * @return number of instances
+     */
+    public long count() {
+        return matching().count();
+    }
+
+    /**
+     * Return the sum of the values of the matching instances. The limit is ignored.
+     *
+     * @param function the function returning the value for the instance
+     * @return the sum or 0 if there are no matching instances
+     */
+    public long sum(ToLongFunction<? super E> function) {
+        return matching().mapToLong(function).sum();
+    }
+
+    /**
+     * Return the average of the values of the matching instances. The limit is ignored.
+     *
+     * @param function the function returning the value for the instance
+     * @return the average or an empty result if there are no matching instances
+     */
+    public OptionalDouble average(ToDoubleFunction<? super E> function) {
+        return matching().mapToDouble(function).average();
+    }
+
+    /**
+     * Return the minimal matching instance. The limit is ignored.
+     *
+     * @param comparator the comparator
+     * @return the instance or an empty result if there are no matching instances
+     */
+    public Optional<E> min(Comparator<? super E> comparator) {
+        return matching().min(comparator);
+    }
+
+    /**
+     * Return the maximal matching instance. The limit is ignored.
+     *
+     * @param comparator the comparator
+     * @return the instance or an empty result if there are no matching instances
+     */
+    public Optional<E> max(Comparator<? super E> comparator) {
+        return matching().max(comparator);
+    }
+
+    private Stream<E> matching() {
+        boolean isParallel = values.size() >= PARALLEL_SIZE && ForkJoinPool.getCommonPoolParallelism() > 1;
+        Stream<E> stream = isParallel ? values.parallelStream() : values.stream();
+        return filter == null ? stream : stream.filter(filter);
+    }
+
+    /**
+     * Collector of the first instances in the given order. Every chunk keeps only the first instances
+     * in a heap, so the matching instances are not sorted.
+     */
+    private static <T> Collector<T, ?, List<T>> top(Comparator<? super T> comparator, int limit) {
+        return Collector.of(
+                () -> new PriorityQueue<T>(Collections.reverseOrder(comparator)),
+                (queue, value) -> offer(queue, value, comparator, limit),
+                (left, right) -> {
+                    for (T value : right) {
+                        offer(left, value, comparator, limit);
+                    }
+                    return left;
+                },
+                queue -> {
+                    List<T> result = new ArrayList<>(queue);
+                    result.sort(comparator);
+                    return result;
+                },
+                Collector.Characteristics.UNORDERED);
+    }
+
+    private static <T> void offer(PriorityQueue<T> queue, T value, Comparator<? super T> comparator, int limit) {
+        if (queue.size() < limit) {
+            queue.add(value);
+        } else if (comparator.compare(value, queue.peek()) < 0) {
+            queue.poll();
+            queue.add(value);
+        }
+    }
+}
@@ -1,26 +1,45 @@
 package com.editbox.database;
 
-import com.editbox.database.annotation.MaxLength;
-import com.editbox.database.annotation.NotNull;
-import com.editbox.database.annotation.Uuid;
+import com.editbox.database.annotation.Index;
 import com.editbox.database.serialize.BinarySerializer;
 import com.editbox.database.serialize.ByteBuf;
+import com.editbox.database.serialize.ChannelReader;
+import com.editbox.database.serialize.Schema;
 import com.editbox.database.serialize.Serializer;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 import static com.editbox.database.RepositoryOperation.*;
 import static java.io.File.separator;
 
 /**
  * Repository that represents all objects of a certain type in memory map with persistence.
+ * <p>
+ * Reads are served from a concurrent map and never wait for writers. Writes lock only the stripe
+ * of the entry id while they are queued to the {@link Journal journal}, so writes of different entries
+ * run in parallel and share disk writes and forces.
+ * <p>
+ * Fields annotated with {@link Index} are indexed, the entries can be found by their values.
  *
  * @author Aleksandr Uhanov
  * @since 2018-09-11
@@ -29,87 +48,462 @@ public class Repository<E extends RepositoryAccess> {
 
     private static final String ext = ".edb";
 
+    /**
+     * Files of this size and larger are restored on all available processors.
+     */
+    private static final long PARALLEL_RESTORE_SIZE = 16 << 20;
+
+    /**
+     * Maximum size of the header of an insert or update record: operation, uuid, size of length, length.
+     */
+    private static final int MAX_HEADER_SIZE = 1 + 16 + 1 + 4;
+
+    /**
+     * Maximum capacity of the record buffer kept by a thread after the record is created.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The number of write locks, a power of two.
+     */
+    private static final int LOCK_COUNT = 64;
+
+    /**
+     * Delay of the automatic optimization after its first failure, in milliseconds. It is doubled after
+     * every next failure up to {@link #MAX_OPTIMIZATION_RETRY_DELAY}.
+     */
+    private static final long MIN_OPTIMIZATION_RETRY_DELAY = 60_000;
+
+    private static final long MAX_OPTIMIZATION_RETRY_DELAY = 3_600_000;
+
+    /**
+     * Buffers for creating records. The records are copied by the journal, so the buffers are reused.
+     */
+    private static final ThreadLocal<ByteBuf> recordBuffers = ThreadLocal.withInitial(ByteBuf::new);
+
     private Class<E> objectsType;
 
+    private Constructor<E> constructor;
+
     private Field readonlyField;
 
     private String alias;
 
     private Serializer<E> serializer;
 
+    private Validator validator;
+
     private boolean isPersistent;
 
+    private Durability durability;
+
     private String dataPath;
 
     private String backupsPath;
 
-    private Map<UUID, E> data;
+    private final EntryStore<E> data;
+
+    /**
+     * Secondary indexes by field name.
+     */
+    private final Map<String, FieldIndex> indexes;
+
+    /**
+     * The journal of the repository file or {@code null} if the repository is not persistent.
+     */
+    private Journal journal;
+
+    /**
+     * Serializes optimization and backup of the repository file.
+     */
+    private final Object compactionLock = new Object();
+
+    /**
+     * Write locks striped by the entry id. A write holds the lock of its entry while it is queued to the journal
+     * and applied, so the records of an entry are in the file in the order of the changes. Optimization,
+     * restore, opening and closing of snapshots take all locks.
+     */
+    private final Lock[] locks = new Lock[LOCK_COUNT];
+
+    /**
+     * Estimated number of bytes in the file that are not needed to restore the objects.
+     */
+    private final AtomicLong garbageBytes = new AtomicLong();
+
+    private final AtomicBoolean isOptimizationScheduled = new AtomicBoolean();
+
+    /**
+     * The last version stamp assigned to a written or restored object. Stamps start from 1, so an object
+     * that was not read from the repository never matches a stored one.
+     */
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    /**
+     * The last schema record of the file is the schema of the entity class.
+     * Otherwise it is written before the next record.
+     */
+    private volatile boolean isSchemaWritten;
+
+    /**
+     * The log of the database in which the repository is registered, or {@code null}.
+     */
+    private TransactionLog transactionLog;
+
+    private volatile double garbageRatio = 0.5;
 
-    private RandomAccessFile file;
+    private volatile long minOptimizationSize = 16 << 20;
+
+    /**
+     * The error of the last automatic optimization or {@code null} if it succeeded.
+     */
+    private volatile Throwable optimizationFailure;
+
+    /**
+     * The delay after the last failure of the automatic optimization or 0. It is used by one optimization
+     * thread at a time.
+     */
+    private long optimizationRetryDelay;
+
+    /**
+     * The time before which the automatic optimization is not started after a failure.
+     */
+    private volatile long optimizationRetryTime;
 
     public Repository(Class<E> objectsType, String alias, boolean isPersistent, String dataPath, String backupsPath) {
+        this(objectsType, alias, isPersistent, Durability.async(), dataPath, backupsPath);
+    }
+
+    public Repository(Class<E> objectsType, String alias, boolean isPersistent, Durability durability,
+                      String dataPath, String backupsPath) {
+        this(objectsType, alias, isPersistent, durability, Storage.heap(), dataPath, backupsPath);
+    }
+
+    public Repository(Class<E> objectsType, String alias, boolean isPersistent, Durability durability,
+                      Storage storage, String dataPath, String backupsPath) {
         this.objectsType = objectsType;
         this.alias = alias;
-        this.serializer = new BinarySerializer<>();
+        this.serializer = BinarySerializer.of(objectsType);
+        this.validator = Validator.of(objectsType);
         this.isPersistent = isPersistent;
+        this.durability = durability;
         this.dataPath = dataPath;
         this.backupsPath = backupsPath;
-        this.data = new HashMap<>();
-        this.file = openFile(getDataFilePath());
+        if (storage.isOffHeap()) {
+            this.data = new OffHeapStore<>(new OffHeapStore.Codec<>() {
+
+                @Override
+                public void encode(E entry, ByteBuf buf) {
+                    serializer.fullFormat(entry, buf);
+                }
+
+                @Override
+                public E decode(UUID id, byte[] data) {
+                    return readEntry(id, data);
+                }
+            }, storage.getCacheSize());
+        } else {
+            this.data = new HeapStore<>();
+        }
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.indexes = new LinkedHashMap<>();
+        for (Field field : objectsType.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Index.class)) {
+                indexes.put(field.getName(), new FieldIndex(field));
+            }
+        }
         try {
+            this.constructor = objectsType.getConstructor();
             this.readonlyField = objectsType.getSuperclass().getDeclaredField("readonly");
             this.readonlyField.setAccessible(true);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        // the file is opened last, so a repository that failed to be created does not keep it open
+        this.journal = isPersistent ? new Journal(getDataFilePath(), durability) : null;
+    }
+
+    /**
+     * Add the object to repository. If persistent = true, then the object will be save to disk.
+     * <p>
+     * The method returns after the object is written with the repository durability.
+     *
+     * @param object a transient instance of a persistent class
+     */
+    public void add(E object) {
+        Journal.await(addAsync(object));
     }
 
     /**
      * Add the object to repository. If persistent = true, then the object will be save to disk.
+     * <p>
+     * The object is available for reading when the method returns.
      *
      * @param object a transient instance of a persistent class
+     * @return a future that is completed when the object is written with the repository durability
      */
-    public synchronized void add(E object) {
+    public CompletableFuture<Void> addAsync(E object) {
+        Lock lock = lockFor(object.getId());
+        lock.lock();
         try {
-            validate(object);
+            validator.validate(object);
             UUID id = object.getId();
             if (id == null) {
                 throw new RuntimeException("Method getId() cannot return null");
             }
-            if (data.get(id) != null) {
+            if (data.containsKey(id)) {
                 throw new RuntimeException("Object with uuid = " + object.getId() + " already exists");
             }
-            readonlyField.set(object, true);
+            // the record is queued first, nothing is changed if the journal rejects it
+            CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
             if (isPersistent) {
-                file.write(serializeEntry(object));
+                written = write(serializeEntry(object), 0);
             }
+            readonlyField.set(object, true);
+            object.version = lastVersion.incrementAndGet();
             data.put(id, object);
+            for (FieldIndex index : indexes.values()) {
+                index.add(object);
+            }
+            return written;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add the objects to repository. If persistent = true, then the objects will be save to disk.
+     * <p>
+     * The method returns after the objects are written with the repository durability.
+     *
+     * @param objects transient instances of a persistent class
+     * @see #addAllAsync(Collection)
+     */
+    public void addAll(Collection<? extends E> objects) {
+        Journal.await(addAllAsync(objects));
+    }
+
+    /**
+     * Add the objects to repository. If persistent = true, then the objects will be save to disk.
+     * <p>
+     * All objects are validated before any of them is added. Their records are appended to the file
+     * with one write. The objects are available for reading when the method returns, concurrent readers
+     * may see some of them earlier than others.
+     *
+     * @param objects transient instances of a persistent class
+     * @return a future that is completed when the objects are written with the repository durability
+     */
+    public CompletableFuture<Void> addAllAsync(Collection<? extends E> objects) {
+        int[] locked = lock(idsOf(objects));
+        try {
+            Set<UUID> ids = new HashSet<>();
+            for (E object : objects) {
+                validator.validate(object);
+                UUID id = object.getId();
+                if (id == null) {
+                    throw new RuntimeException("Method getId() cannot return null");
+                }
+                if (data.containsKey(id) || !ids.add(id)) {
+                    throw new RuntimeException("Object with uuid = " + id + " already exists");
+                }
+            }
+            if (ids.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+            if (isPersistent) {
+                ByteBuf batch = new ByteBuf();
+                for (E object : objects) {
+                    appendRecord(batch, serializeEntry(object));
+                }
+                batch.setPosition(0);
+                written = write(batch, 0);
+            }
+            for (E object : objects) {
+                readonlyField.set(object, true);
+                object.version = lastVersion.incrementAndGet();
+                data.put(object.getId(), object);
+                for (FieldIndex index : indexes.values()) {
+                    index.add(object);
+                }
+            }
+            return written;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            unlock(locked);
         }
     }
 
     /**
      * Return the readonly instance of the entity class.
      * Use the instance only for reading! Do not use setters and subsequent update!
+     * <p>
+     * The method does not lock the repository.
      *
      * @param entryId uuid of an existing instance of the class
      * @return the instance
      */
-    public synchronized E getForRead(UUID entryId) {
+    public E getForRead(UUID entryId) {
+        if (entryId == null) {
+            return null;
+        }
         return data.get(entryId);
     }
 
     /**
      * Return the readonly all instances of the entity class.
      * Use the instances only for reading! Do not use setters and subsequent update!
+     * <p>
+     * The method does not lock the repository. Objects added or removed during the call
+     * may or may not be present in the result.
+     * <p>
+     * The list is a copy, use {@link #forEach(Consumer)} or {@link #stream()} to scan the instances.
      *
      * @return list of instances
      */
-    public synchronized List<E> getAllForRead() {
+    public List<E> getAllForRead() {
         return new ArrayList<>(data.values());
     }
 
+    /**
+     * Perform the action for each readonly instance of the entity class.
+     * Use the instances only for reading! Do not use setters and subsequent update!
+     * <p>
+     * The instances are not copied and the repository is not locked. Objects added or removed during
+     * the call may or may not be passed to the action, every other object is passed once.
+     *
+     * @param action the action for each instance
+     */
+    public void forEach(Consumer<? super E> action) {
+        data.values().forEach(action);
+    }
+
+    /**
+     * Return a sequential stream of the readonly instances of the entity class.
+     * Use the instances only for reading! Do not use setters and subsequent update!
+     * <p>
+     * The instances are not copied and the repository is not locked. Objects added or removed while
+     * the stream is consumed may or may not be present in the stream, every other object is present once.
+     *
+     * @return stream of instances
+     */
+    public Stream<E> stream() {
+        return data.values().stream();
+    }
+
+    /**
+     * Return a parallel stream of the readonly instances of the entity class.
+     * Use the instances only for reading! Do not use setters and subsequent update!
+     * <p>
+     * It has the same consistency as {@link #stream()}.
+     *
+     * @return stream of instances
+     */
+    public Stream<E> parallelStream() {
+        return data.values().parallelStream();
+    }
+
+    /**
+     * Create the query over the readonly instances of the entity class.
+     * Large repositories are scanned in parallel on the common fork-join pool.
+     *
+     * @return new query
+     */
+    public Query<E> query() {
+        return new Query<>(data.values());
+    }
+
+    /**
+     * Open the consistent readonly view of the instances. Writes after the call are not visible in the view.
+     * <p>
+     * The method waits for the current write, the writes are not blocked while the snapshot is open.
+     * The snapshot should be closed, usually with try-with-resources.
+     *
+     * @return new snapshot
+     * @throws UnsupportedOperationException if the repository is stored off-heap
+     */
+    public Snapshot<E> snapshot() {
+        if (!(data instanceof SnapshotStore)) {
+            throw new UnsupportedOperationException("Snapshots are not supported by off-heap storage, repository "
+                    + alias);
+        }
+        lockAll();
+        try {
+            return new Snapshot<>(this, (SnapshotStore<E>) data);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Close the snapshot opened by {@link #snapshot()}. The method waits for the current write, so the states
+     * of the objects are released while no object is written.
+     */
+    void closeSnapshot(SnapshotStore<E> data, long version) {
+        lockAll();
+        try {
+            data.closeSnapshot(version);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Return the readonly instances with the given value of the indexed field.
+     * Use the instances only for reading! Do not use setters and subsequent update!
+     * <p>
+     * The value should have the type of the field, primitive types are boxed.
+     *
+     * @param fieldName name of the field annotated with {@link Index}
+     * @param value     field value
+     * @return list of instances
+     */
+    public List<E> findBy(String fieldName, Object value) {
+        FieldIndex index = getIndex(fieldName);
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not indexed");
+        }
+        List<E> result = new ArrayList<>();
+        for (UUID id : index.find(value)) {
+            E entry = data.get(id);
+            // the index and the entry can be changed concurrently
+            if (entry != null && index.matches(entry, value)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the readonly instances with the value of the indexed field from {@code from} inclusive
+     * to {@code to} exclusive, in the order of values.
+     * Use the instances only for reading! Do not use setters and subsequent update!
+     *
+     * @param fieldName name of the field annotated with {@link Index} of type {@link Index.Type#SORTED}
+     * @param from      low bound of the values or null
+     * @param to        high bound of the values or null
+     * @return list of instances
+     */
+    public List<E> range(String fieldName, Object from, Object to) {
+        FieldIndex index = getIndex(fieldName);
+        if (!index.isSorted()) {
+            throw new IllegalArgumentException("Index of field '" + fieldName + "' is not sorted");
+        }
+        List<E> result = new ArrayList<>();
+        for (UUID id : index.range(from, to)) {
+            E entry = data.get(id);
+            // the index and the entry can be changed concurrently
+            if (entry != null && index.matches(entry, from, to)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
     /**
      * Return the instance of the given entity class with the given identifier,
      * assuming that the instance exists. Use the instance for read and update.
@@ -117,20 +511,29 @@ public class Repository<E extends RepositoryAccess> {
      * @param entryId uuid of an existing instance of the class
      * @return the instance
      */
-    public synchronized E getForUpdate(UUID entryId) {
+    public E getForUpdate(UUID entryId) {
+        if (entryId == null) {
+            return null;
+        }
         E entry = data.get(entryId);
         if (entry == null) {
             return null;
         }
-        E copiedEntry;
-        try {
-            copiedEntry = objectsType.getConstructor().newInstance();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        copiedEntry.setId(entryId);
-        serializer.fillEntry(objectsType, copiedEntry, serializer.fullFormat(entry));
-        return copiedEntry;
+        return copy(entry);
+    }
+
+    /**
+     * Update the instance with the identifier of the given detached instance.
+     * The changes of other writers since the instance was read are overwritten, see {@link #compareAndUpdate}.
+     * <p>
+     * Partition value cannot be changed.
+     * <p>
+     * The method returns after the changes are written with the repository durability.
+     *
+     * @param newEntry instance containing updated state
+     */
+    public void update(E newEntry) {
+        Journal.await(updateAsync(newEntry));
     }
 
     /**
@@ -139,10 +542,13 @@ public class Repository<E extends RepositoryAccess> {
      * Partition value cannot be changed.
      *
      * @param newEntry instance containing updated state
+     * @return a future that is completed when the changes are written with the repository durability
      */
-    public synchronized void update(E newEntry) {
+    public CompletableFuture<Void> updateAsync(E newEntry) {
+        Lock lock = lockFor(newEntry.getId());
+        lock.lock();
         try {
-            validate(newEntry);
+            validator.validate(newEntry);
             if (readonlyField.getBoolean(newEntry)) {
                 throw new RuntimeException("This object is readonly");
             }
@@ -151,211 +557,1068 @@ public class Repository<E extends RepositoryAccess> {
             if (oldEntry == null) {
                 throw new RuntimeException(String.format("Entry with uuid = %s does not exist", id));
             }
-            readonlyField.set(newEntry, true);
-            if (isPersistent) {
-                byte[] bytes = serializer.formatDiff(oldEntry, newEntry);
-                if (bytes.length != 0) {
-                    int bytesForLength = usefulBytes(bytes.length);
-                    ByteBuf buf = new ByteBuf(1 + 16 + 1 + bytesForLength + bytes.length);
-                    buf.putByte(UPDATE.getCode());
-                    buf.putUuid(id);
-                    buf.putByte((byte) bytesForLength);
-                    buf.putInt(bytes.length, bytesForLength);
-                    buf.putArray(bytes);
-                    file.write(buf.toArray());
-                }
-            }
-            data.put(id, newEntry);
+            return replace(oldEntry, newEntry);
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Remove the object from the repository.
+     * Update the instance with the identifier of the given detached instance if the instance was not changed
+     * since the detached instance was read by {@link #getForUpdate(UUID)}.
+     * <p>
+     * The method returns after the changes are written with the repository durability.
      *
-     * @param entryId The entity uuid for the instance to be removed.
+     * @param newEntry instance containing updated state
+     * @return true if the instance is updated, false if it was updated or deleted by another writer,
+     * or if the detached instance was not read from the repository
+     */
+    public boolean compareAndUpdate(E newEntry) {
+        return Journal.await(compareAndUpdateAsync(newEntry));
+    }
+
+    /**
+     * Update the instance with the identifier of the given detached instance if the instance was not changed
+     * since the detached instance was read by {@link #getForUpdate(UUID)}.
+     * <p>
+     * A conflict does not wait for disk, the future is completed with false immediately. A detached instance
+     * that was not read from the repository always conflicts.
+     *
+     * @param newEntry instance containing updated state
+     * @return a future that is completed with the result when the changes are written with the repository durability
      */
-    public synchronized boolean delete(UUID entryId) {
+    public CompletableFuture<Boolean> compareAndUpdateAsync(E newEntry) {
+        Lock lock = lockFor(newEntry.getId());
+        lock.lock();
         try {
-            if (data.get(entryId) != null) {
-                if (isPersistent) {
-                    ByteBuf buf = new ByteBuf(1 + 16);
-                    buf.putByte(DELETE.getCode());
-                    buf.putUuid(entryId);
-                    file.write(buf.toArray());
-                }
-                data.remove(entryId);
-                return true;
+            validator.validate(newEntry);
+            if (readonlyField.getBoolean(newEntry)) {
+                throw new RuntimeException("This object is readonly");
             }
-            return false;
+            E oldEntry = data.get(newEntry.getId());
+            if (oldEntry == null || oldEntry.version != newEntry.version) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return replace(oldEntry, newEntry).thenApply(v -> true);
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Perform repository file optimization.
+     * Update the instance by the function without locking the repository while the function is called.
      * <p>
-     * Update and delete records will be excluded from the file. Therefore, the file size is reduced.
+     * The function gets a writable copy of the current instance and returns the new state, usually the same
+     * copy with changed fields. If the instance is changed by another writer meanwhile, the function is called
+     * again with the new state, so it should not have side effects. The identifier cannot be changed.
+     * <p>
+     * The method returns after the changes are written with the repository durability.
+     *
+     * @param entryId  uuid of the instance
+     * @param function function of the current state that returns the new state
+     * @return the updated readonly instance or {@code null} if the instance does not exist
      */
-    public synchronized void optimize() {
-        try {
-            String path = dataPath + separator + alias + '_' + ext;
-            RandomAccessFile backupFile = openFile(path);
-            for (E entry : data.values()) {
-                backupFile.write(serializeEntry(entry));
-            }
-            backupFile.close();
-            file.close();
-            Files.move(Paths.get(path), Paths.get(getDataFilePath()), StandardCopyOption.REPLACE_EXISTING);
-            file = openFile(getDataFilePath());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    public E compute(UUID entryId, UnaryOperator<E> function) {
+        if (entryId == null) {
+            return null;
+        }
+        while (true) {
+            E entry = data.get(entryId);
+            if (entry == null) {
+                return null;
+            }
+            E newEntry = Objects.requireNonNull(function.apply(copy(entry)), "Function cannot return null");
+            if (!entryId.equals(newEntry.getId())) {
+                throw new RuntimeException("Identifier of the object cannot be changed");
+            }
+            // the new state can be another instance, it replaces the state given to the function
+            newEntry.version = entry.version;
+            if (compareAndUpdate(newEntry)) {
+                return newEntry;
+            }
         }
     }
 
     /**
-     * Copy repository file to backup directory.
+     * Return the version stamp of the instance. Every write of an instance assigns a new stamp,
+     * so equal stamps of the same identifier mean the same state.
+     *
+     * @param entry an instance read from the repository or its copy from {@link #getForUpdate(UUID)}
+     * @return the version stamp
      */
-    public synchronized void createBackup() {
-        try {
-            String backupTodayPath = backupsPath + separator + LocalDate.now();
-            String backupFilePath = backupTodayPath + separator + alias + ext;
-            Files.createDirectories(Paths.get(backupTodayPath));
-            Files.copy(Paths.get(getDataFilePath()), Paths.get(backupFilePath), StandardCopyOption.REPLACE_EXISTING);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    public long getVersion(E entry) {
+        return entry.version;
+    }
+
+    /**
+     * Write the changes of the instance and store the new state.
+     */
+    private CompletableFuture<Void> replace(E oldEntry, E newEntry) throws IllegalAccessException {
+        UUID id = newEntry.getId();
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        if (isPersistent) {
+            ByteBuf buf = recordBuffer();
+            buf.setPosition(MAX_HEADER_SIZE);
+            serializer.formatDiff(oldEntry, newEntry, buf);
+            if (buf.getLimit() > MAX_HEADER_SIZE) {
+                writeHeader(buf, UPDATE, id);
+                // the changed values of the previous records are not needed anymore
+                written = write(buf, buf.getLimit() - buf.getPosition());
+            }
         }
+        readonlyField.set(newEntry, true);
+        newEntry.version = lastVersion.incrementAndGet();
+        data.put(id, newEntry);
+        for (FieldIndex index : indexes.values()) {
+            index.update(oldEntry, newEntry);
+        }
+        return written;
     }
 
     /**
-     * Perform repository file optimization and create backup.
+     * Update the instances with the identifiers of the given detached instances.
+     * <p>
+     * The method returns after the changes are written with the repository durability.
+     *
+     * @param newEntries instances containing updated state
+     * @see #updateAllAsync(Collection)
      */
-    public synchronized void optimizeAndBackup() {
-        optimize();
-        createBackup();
+    public void updateAll(Collection<? extends E> newEntries) {
+        Journal.await(updateAllAsync(newEntries));
     }
 
     /**
-     * Restore all the objects from a file into memory.
+     * Update the instances with the identifiers of the given detached instances.
+     * <p>
+     * All instances are validated before any of them is updated, an identifier can occur once.
+     * The changes are appended to the file with one write.
+     *
+     * @param newEntries instances containing updated state
+     * @return a future that is completed when the changes are written with the repository durability
      */
-    public synchronized void restore() {
+    public CompletableFuture<Void> updateAllAsync(Collection<? extends E> newEntries) {
+        int[] locked = lock(idsOf(newEntries));
         try {
-            byte[] allBytes = Files.readAllBytes(Paths.get(getDataFilePath()));
-            ByteBuf buf = new ByteBuf(allBytes);
-            while (buf.getPosition() < buf.getCapacity()) {
-                RepositoryOperation operation = RepositoryOperation.fromCode(buf.getByte());
-                UUID id = new UUID(buf.getLong(), buf.getLong());
-                switch (operation) {
-                    case INSERT:
-                        int bytesForLength = buf.getByte();
-                        int dataSize = buf.getInt(bytesForLength);
-                        byte[] serializedData = buf.getArray(dataSize);
-                        E entry = objectsType.getConstructor().newInstance();
-                        entry.setId(id);
-                        serializer.fillEntry(objectsType, entry, serializedData);
-                        readonlyField.set(entry, true);
-                        data.put(id, entry);
-                        break;
-                    case UPDATE:
-                        bytesForLength = buf.getByte();
-                        dataSize = buf.getInt(bytesForLength);
-                        serializedData = buf.getArray(dataSize);
-                        entry = getForUpdate(id);
-                        serializer.fillEntry(objectsType, entry, serializedData);
-                        readonlyField.set(entry, true);
-                        data.put(id, entry);
-                        break;
-                    case DELETE:
-                        data.remove(id);
-                        break;
+            Map<UUID, E> oldEntries = new HashMap<>();
+            for (E newEntry : newEntries) {
+                validator.validate(newEntry);
+                if (readonlyField.getBoolean(newEntry)) {
+                    throw new RuntimeException("This object is readonly");
+                }
+                UUID id = newEntry.getId();
+                E oldEntry = data.get(id);
+                if (oldEntry == null) {
+                    throw new RuntimeException(String.format("Entry with uuid = %s does not exist", id));
+                }
+                if (oldEntries.put(id, oldEntry) != null) {
+                    throw new RuntimeException(String.format("Entry with uuid = %s is updated more than once", id));
+                }
+            }
+            CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+            if (isPersistent) {
+                ByteBuf batch = new ByteBuf();
+                for (E newEntry : newEntries) {
+                    ByteBuf buf = recordBuffer();
+                    buf.setPosition(MAX_HEADER_SIZE);
+                    serializer.formatDiff(oldEntries.get(newEntry.getId()), newEntry, buf);
+                    if (buf.getLimit() > MAX_HEADER_SIZE) {
+                        writeHeader(buf, UPDATE, newEntry.getId());
+                        appendRecord(batch, buf);
+                    }
+                }
+                if (batch.getLimit() > 0) {
+                    batch.setPosition(0);
+                    // the changed values of the previous records are not needed anymore
+                    written = write(batch, batch.getLimit());
+                }
+            }
+            for (E newEntry : newEntries) {
+                readonlyField.set(newEntry, true);
+                newEntry.version = lastVersion.incrementAndGet();
+                E oldEntry = oldEntries.get(newEntry.getId());
+                data.put(newEntry.getId(), newEntry);
+                for (FieldIndex index : indexes.values()) {
+                    index.update(oldEntry, newEntry);
                 }
             }
+            return written;
         } catch (Exception e) {
-            throw new RuntimeException("Error restore objects of repository from file " + getDataFilePath(), e);
+            throw new RuntimeException(e);
+        } finally {
+            unlock(locked);
         }
     }
 
-    public int size() {
-        return data.size();
-    }
+    /**
+     * Remove the object from the repository.
+     * <p>
+     * The method returns after the removal is written with the repository durability.
+     *
+     * @param entryId The entity uuid for the instance to be removed.
+     */
+    public boolean delete(UUID entryId) {
+        return Journal.await(deleteAsync(entryId));
+    }
 
-    private RandomAccessFile openFile(String path) {
+    /**
+     * Remove the object from the repository.
+     *
+     * @param entryId The entity uuid for the instance to be removed.
+     * @return a future that is completed with the result when the removal is written with the repository durability
+     */
+    public CompletableFuture<Boolean> deleteAsync(UUID entryId) {
+        if (entryId == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        Lock lock = lockFor(entryId);
+        lock.lock();
         try {
-            RandomAccessFile file = new RandomAccessFile(path, "rw");
-            file.seek(file.length());
-            return file;
-        } catch (IOException e) {
+            E entry = data.get(entryId);
+            if (entry != null) {
+                CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+                if (isPersistent) {
+                    ByteBuf buf = recordBuffer();
+                    buf.putByte(DELETE.getCode()).putUuid(entryId);
+                    buf.setPosition(0);
+                    written = write(buf, buf.getLimit() + averageEntrySize());
+                }
+                data.remove(entryId);
+                for (FieldIndex index : indexes.values()) {
+                    index.remove(entry);
+                }
+                return written.thenApply(v -> true);
+            }
+            return CompletableFuture.completedFuture(false);
+        } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
-    private String getDataFilePath() {
-        return dataPath + separator + alias + ext;
+    /**
+     * Remove the objects from the repository.
+     * <p>
+     * The method returns after the removals are written with the repository durability.
+     *
+     * @param entryIds The entity uuids for the instances to be removed.
+     * @return number of removed instances
+     */
+    public int deleteAll(Collection<UUID> entryIds) {
+        return Journal.await(deleteAllAsync(entryIds));
     }
 
-    private byte[] serializeEntry(E entry) {
-        byte[] bytes = serializer.fullFormat(entry);
-        int bytesForLength = usefulBytes(bytes.length);
-        ByteBuf buf = new ByteBuf(1 + 16 + 1 + bytesForLength + bytes.length);
-        buf.putByte(INSERT.getCode());
-        buf.putUuid(entry.getId());
-        buf.putByte((byte) bytesForLength);
-        buf.putInt(bytes.length, bytesForLength);
-        buf.putArray(bytes);
-        return buf.toArray();
-    }
-
-    private void validate(E entry) throws ReflectiveOperationException {
-        Field[] fields = entry.getClass().getDeclaredFields();
-        boolean idFieldExisting = false;
-        for (Field field : fields) {
-            field.setAccessible(true);
-            if (field.get(entry) == null) {
-                if (field.isAnnotationPresent(NotNull.class) || field.isAnnotationPresent(Uuid.class)) {
-                    throw new RuntimeException("Error validating object class '" + entry.getClass().getName() +
-                            "'. Field '" + field.getName() + "' cannot be null.");
-                }
-                continue;
-            }
-            if (field.isAnnotationPresent(Uuid.class)) {
-                if (idFieldExisting) {
-                    throw new RuntimeException("Error validating object class '" + entry.getClass().getName() +
-                            "'. Only one field can be annotated with 'Uuid'.");
-                }
-                idFieldExisting = true;
-            }
-            if (field.isAnnotationPresent(MaxLength.class)) {
-                int maxLength = field.getAnnotation(MaxLength.class).value();
-                String typeName = field.getType().getName();
-                switch (typeName) {
-                    case "[B":
-                        byte[] blobValue = (byte[]) field.get(entry);
-                        if (blobValue.length > maxLength) {
-                            throw new RuntimeException("Error validating object class " + entry.getClass().getName() +
-                                    ". The maximum length of the field '" + field.getName() + "' is " + maxLength);
+    /**
+     * Remove the objects from the repository. Null identifiers and identifiers of missing instances are ignored.
+     * The removals are appended to the file with one write.
+     *
+     * @param entryIds The entity uuids for the instances to be removed.
+     * @return a future that is completed with the number of removed instances when the removals are written
+     * with the repository durability
+     */
+    public CompletableFuture<Integer> deleteAllAsync(Collection<UUID> entryIds) {
+        int[] locked = lock(entryIds);
+        try {
+            Map<UUID, E> entries = new LinkedHashMap<>();
+            for (UUID entryId : entryIds) {
+                if (entryId == null) {
+                    continue;
+                }
+                E entry = data.get(entryId);
+                if (entry != null) {
+                    entries.putIfAbsent(entryId, entry);
+                }
+            }
+            if (entries.isEmpty()) {
+                return CompletableFuture.completedFuture(0);
+            }
+            CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+            if (isPersistent) {
+                ByteBuf batch = new ByteBuf();
+                for (UUID entryId : entries.keySet()) {
+                    batch.putByte(DELETE.getCode()).putUuid(entryId);
+                }
+                batch.setPosition(0);
+                written = write(batch, batch.getLimit() + averageEntrySize() * entries.size());
+            }
+            for (E entry : entries.values()) {
+                data.remove(entry.getId());
+                for (FieldIndex index : indexes.values()) {
+                    index.remove(entry);
+                }
+            }
+            int removed = entries.size();
+            return written.thenApply(v -> removed);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Validate the changes of the transaction and create its frame. Nothing is changed if the changes
+     * are not valid. The entries of the changes should stay locked by {@link #lock(Collection)} until
+     * the changes are applied.
+     *
+     * @param transactionId the transaction id
+     * @param changes       the changes of this repository, the frame and the previous states are set to them
+     */
+    void prepareTransaction(UUID transactionId, Transaction.Changes<E> changes) {
+        try {
+            Set<UUID> ids = new HashSet<>();
+            Map<UUID, E> oldEntries = new HashMap<>();
+            for (E object : changes.added) {
+                validator.validate(object);
+                UUID id = object.getId();
+                if (id == null) {
+                    throw new RuntimeException("Method getId() cannot return null");
+                }
+                if (data.containsKey(id)) {
+                    throw new RuntimeException("Object with uuid = " + id + " already exists");
+                }
+                requireFirstChange(ids, id);
+            }
+            for (E newEntry : changes.updated) {
+                validator.validate(newEntry);
+                if (readonlyField.getBoolean(newEntry)) {
+                    throw new RuntimeException("This object is readonly");
+                }
+                UUID id = newEntry.getId();
+                E oldEntry = data.get(id);
+                if (oldEntry == null) {
+                    throw new RuntimeException(String.format("Entry with uuid = %s does not exist", id));
+                }
+                requireFirstChange(ids, id);
+                oldEntries.put(id, oldEntry);
+            }
+            for (UUID id : changes.deleted) {
+                requireFirstChange(ids, id);
+                E entry = data.get(id);
+                if (entry != null) {
+                    oldEntries.put(id, entry);
+                }
+            }
+            changes.oldEntries = oldEntries;
+            changes.frame = null;
+            changes.garbage = 0;
+            if (!isPersistent) {
+                return;
+            }
+            ByteBuf frame = new ByteBuf();
+            frame.setPosition(MAX_HEADER_SIZE);
+            long garbage = 0;
+            for (E object : changes.added) {
+                appendRecord(frame, serializeEntry(object));
+            }
+            for (E newEntry : changes.updated) {
+                ByteBuf buf = recordBuffer();
+                buf.setPosition(MAX_HEADER_SIZE);
+                serializer.formatDiff(oldEntries.get(newEntry.getId()), newEntry, buf);
+                if (buf.getLimit() > MAX_HEADER_SIZE) {
+                    writeHeader(buf, UPDATE, newEntry.getId());
+                    garbage += buf.getLimit() - buf.getPosition();
+                    appendRecord(frame, buf);
+                }
+            }
+            for (UUID id : changes.deleted) {
+                if (oldEntries.containsKey(id)) {
+                    frame.putByte(DELETE.getCode()).putUuid(id);
+                    garbage += 1 + 16 + averageEntrySize();
+                }
+            }
+            if (frame.getLimit() > MAX_HEADER_SIZE) {
+                writeHeader(frame, TRANSACTION, transactionId);
+                changes.frame = frame;
+                changes.garbage = garbage;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Queue the frame prepared by {@link #prepareTransaction(UUID, Transaction.Changes)}. Nothing is changed
+     * in memory until the transaction is committed.
+     *
+     * @return a future that is completed when the frame is written and forced,
+     * or {@code null} if the transaction does not write to this repository
+     */
+    CompletableFuture<Void> writeTransaction(Transaction.Changes<E> changes) {
+        if (changes.frame == null) {
+            return null;
+        }
+        return write(changes.frame, changes.garbage, true);
+    }
+
+    /**
+     * Apply the changes of the committed transaction. The entries of the changes should still be locked,
+     * so the other writers and the optimization never see the changes before the commit.
+     */
+    void applyTransaction(Transaction.Changes<E> changes) {
+        try {
+            for (E object : changes.added) {
+                readonlyField.set(object, true);
+                object.version = lastVersion.incrementAndGet();
+                data.put(object.getId(), object);
+                for (FieldIndex index : indexes.values()) {
+                    index.add(object);
+                }
+            }
+            for (E newEntry : changes.updated) {
+                readonlyField.set(newEntry, true);
+                newEntry.version = lastVersion.incrementAndGet();
+                E oldEntry = changes.oldEntries.get(newEntry.getId());
+                data.put(newEntry.getId(), newEntry);
+                for (FieldIndex index : indexes.values()) {
+                    index.update(oldEntry, newEntry);
+                }
+            }
+            for (UUID id : changes.deleted) {
+                E entry = changes.oldEntries.get(id);
+                if (entry != null) {
+                    data.remove(id);
+                    for (FieldIndex index : indexes.values()) {
+                        index.remove(entry);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void requireFirstChange(Set<UUID> ids, UUID id) {
+        if (!ids.add(id)) {
+            throw new RuntimeException(String.format("Entry with uuid = %s is changed more than once", id));
+        }
+    }
+
+    /**
+     * Set the transaction log of the database. It is called before the restore.
+     */
+    void setTransactionLog(TransactionLog transactionLog) {
+        this.transactionLog = transactionLog;
+    }
+
+    /**
+     * Tells whether the repository is registered in the database with the given transaction log.
+     */
+    boolean isTransactional(TransactionLog transactionLog) {
+        return this.transactionLog != null && this.transactionLog == transactionLog;
+    }
+
+    String getAlias() {
+        return alias;
+    }
+
+    /**
+     * Perform repository file optimization.
+     * <p>
+     * Update and delete records will be excluded from the file. Therefore, the file size is reduced.
+     * <p>
+     * The objects are written to a new file in the background, while reads and writes continue with the
+     * current file. Then the records written in the meantime are copied to the new file and it replaces
+     * the current one. Writes wait only for the copy of the last records.
+     * <p>
+     * The optimization is started automatically when the estimated ratio of update and delete records
+     * in the file exceeds the threshold, see {@link Database#enableOptimization(double, long)}.
+     */
+    public void optimize() {
+        if (!isPersistent) {
+            return;
+        }
+        synchronized (compactionLock) {
+            String path = dataPath + separator + alias + '_' + ext;
+            Journal current;
+            long copied;
+            long garbage;
+            long committed;
+            lockAll();
+            try {
+                current = journal;
+                // the frames of the transactions committed before are written before the copied records
+                committed = transactionLog == null ? 0 : transactionLog.getSequence();
+                copied = current.getEnd();
+                garbage = garbageBytes.get();
+            } finally {
+                unlockAll();
+            }
+            try (FileChannel source = FileChannel.open(Paths.get(getDataFilePath()), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // objects changed after the start are written in any state, the copied records bring them up to date
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                ByteBuf schemaRecord = schemaRecord();
+                buffer.put(schemaRecord.array(), schemaRecord.getPosition(),
+                        schemaRecord.getLimit() - schemaRecord.getPosition());
+                for (E entry : data.values()) {
+                    ByteBuf record = serializeEntry(entry);
+                    int length = record.getLimit() - record.getPosition();
+                    if (length > buffer.remaining()) {
+                        buffer.flip();
+                        writeFully(target, buffer);
+                        buffer.clear();
+                    }
+                    if (length > buffer.capacity()) {
+                        writeFully(target, ByteBuffer.wrap(record.array(), record.getPosition(), length));
+                    } else {
+                        buffer.put(record.array(), record.getPosition(), length);
+                    }
+                }
+                buffer.flip();
+                writeFully(target, buffer);
+                long written = current.flush();
+                copied += copy(source, copied, written, target);
+                lockAll();
+                try {
+                    written = journal.flush();
+                    copy(source, copied, written, target);
+                    target.force(false);
+                    journal.close();
+                    Files.move(Paths.get(path), Paths.get(getDataFilePath()), StandardCopyOption.ATOMIC_MOVE);
+                    journal = new Journal(getDataFilePath(), durability);
+                    garbageBytes.addAndGet(-garbage);
+                    isSchemaWritten = true;
+                } finally {
+                    unlockAll();
+                }
+                if (transactionLog != null) {
+                    transactionLog.optimized(alias, committed);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Copy repository file to backup directory.
+     * <p>
+     * The records written before the call are copied, reads and writes are not blocked.
+     */
+    public void createBackup() {
+        if (!isPersistent) {
+            return;
+        }
+        synchronized (compactionLock) {
+            Journal current;
+            lockAll();
+            try {
+                current = journal;
+            } finally {
+                unlockAll();
+            }
+            long written = current.flush();
+            String backupTodayPath = backupsPath + separator + LocalDate.now();
+            String backupFilePath = backupTodayPath + separator + alias + ext;
+            try {
+                Files.createDirectories(Paths.get(backupTodayPath));
+                try (FileChannel source = FileChannel.open(Paths.get(getDataFilePath()), StandardOpenOption.READ);
+                     FileChannel target = FileChannel.open(Paths.get(backupFilePath), StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    copy(source, 0, written, target);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Perform repository file optimization and create backup.
+     */
+    public void optimizeAndBackup() {
+        synchronized (compactionLock) {
+            optimize();
+            createBackup();
+        }
+    }
+
+    /**
+     * Restore all the objects from a file into memory.
+     * <p>
+     * The file is read sequentially through a fixed-size window, so the file size is not limited by the heap.
+     * Records of a large file are applied on all available processors, partitioned by the entry uuid.
+     * <p>
+     * If the repository is empty and stores the objects in the heap, objects are not yet available for reading,
+     * so updates are applied to the restored objects in place. Every object is created once.
+     * <p>
+     * Fields are read by the names in the schema of the file, so fields can be added, removed
+     * and {@link com.editbox.database.annotation.Renamed renamed} between restarts.
+     * <p>
+     * If the file ends with an incomplete record, the last write was interrupted by a crash and was not
+     * acknowledged. The file is cut after the last complete record.
+     * <p>
+     * If the file contains too much garbage, the optimization is started in the background.
+     */
+    public void restore() {
+        if (!isPersistent && Files.notExists(Paths.get(getDataFilePath()))) {
+            // the file is created only by persistent repositories
+            return;
+        }
+        lockAll();
+        try {
+            boolean inPlace = data.isEmpty() && data.isInstanceStored();
+            // files written before the schema records identify fields by name hashes
+            Schema schema = serializer.getLegacySchema();
+            long size;
+            long complete = 0;
+            try (FileChannel channel = FileChannel.open(Paths.get(getDataFilePath()), StandardOpenOption.READ)) {
+                size = channel.size();
+                ChannelReader buf = new ChannelReader(channel, 0, size);
+                int partitions = Runtime.getRuntime().availableProcessors();
+                ParallelReplay replay = null;
+                Consumer<LogRecord> applier = record -> replay(record, inPlace);
+                if (size >= PARALLEL_RESTORE_SIZE && partitions >= 2) {
+                    replay = new ParallelReplay("restore " + alias, partitions, applier);
+                    applier = replay::submit;
+                }
+                try {
+                    while (buf.hasRemaining()) {
+                        LogRecord record;
+                        try {
+                            record = LogRecord.read(buf, schema);
+                        } catch (UncheckedIOException e) {
+                            if (!(e.getCause() instanceof EOFException)) {
+                                throw e;
+                            }
+                            break;
                         }
-                        break;
-                    case "java.lang.String":
-                        String stringValue = field.get(entry).toString();
-                        if (stringValue.length() > maxLength) {
-                            throw new RuntimeException("Error serializing object class '" + entry.getClass().getName() +
-                                    "'. The maximum length of the field '" + field.getName() + "' is " + maxLength);
+                        complete = buf.getFilePosition();
+                        switch (record.getOperation()) {
+                            case SCHEMA:
+                                schema = serializer.readSchema(record.getData());
+                                break;
+                            case TRANSACTION:
+                                replayFrame(record, applier);
+                                break;
+                            default:
+                                applier.accept(record);
                         }
-                        break;
-                    default:
-                        throw new RuntimeException("Error validating object class '" + entry.getClass().getName() +
-                                "'. Annotation 'MaxLength' is not supported for type '" + typeName + "'.");
+                    }
+                } catch (RuntimeException e) {
+                    if (replay != null) {
+                        replay.cancel();
+                    }
+                    throw e;
+                }
+                if (replay != null) {
+                    replay.finish();
                 }
+            } catch (Exception e) {
+                throw new RuntimeException("Error restore objects of repository from file " + getDataFilePath(), e);
+            }
+            if (complete < size && journal != null) {
+                // the records after the cut were never acknowledged, the next records are appended after the cut
+                journal.truncate(complete);
+            }
+            isSchemaWritten = schema.equals(serializer.getSchema());
+            for (FieldIndex index : indexes.values()) {
+                index.clear();
+                for (E entry : data.values()) {
+                    index.add(entry);
+                }
+            }
+            if (isPersistent) {
+                optimizeIfNeeded();
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Pass the records of the frame to the applier if the transaction is committed.
+     * The frame of a transaction that is not committed is skipped.
+     */
+    private void replayFrame(LogRecord frame, Consumer<LogRecord> applier) {
+        if (transactionLog == null) {
+            throw new RuntimeException("The file contains transactions, the repository should be registered in the database");
+        }
+        if (!transactionLog.isCommitted(frame.getId())) {
+            garbageBytes.addAndGet(frame.getSize());
+            return;
+        }
+        ByteBuf buf = new ByteBuf(frame.getData());
+        while (buf.hasRemaining()) {
+            applier.accept(LogRecord.read(buf, frame.getSchema()));
+        }
+    }
+
+    /**
+     * Apply the record of repository file to the objects in memory.
+     * <p>
+     * It is called concurrently for records of different entries.
+     *
+     * @param inPlace apply update to the existing object instead of its copy
+     */
+    private void replay(LogRecord record, boolean inPlace) {
+        try {
+            UUID id = record.getId();
+            switch (record.getOperation()) {
+                case INSERT:
+                    if (data.containsKey(id)) {
+                        // the entry was inserted during optimization and was taken by it
+                        garbageBytes.addAndGet(record.getSize());
+                    }
+                    E inserted = readEntry(id, record.getData(), record.getSchema());
+                    inserted.version = lastVersion.incrementAndGet();
+                    data.put(id, inserted);
+                    break;
+                case UPDATE:
+                    garbageBytes.addAndGet(record.getSize());
+                    E entry = data.get(id);
+                    if (entry == null) {
+                        // the entry was deleted before optimization took the objects
+                        break;
+                    }
+                    if (inPlace) {
+                        serializer.fillEntry(entry, record.getData(), record.getSchema());
+                        entry.version = lastVersion.incrementAndGet();
+                        break;
+                    }
+                    entry = copy(entry);
+                    serializer.fillEntry(entry, record.getData(), record.getSchema());
+                    entry.version = lastVersion.incrementAndGet();
+                    readonlyField.set(entry, true);
+                    data.put(id, entry);
+                    break;
+                case DELETE:
+                    garbageBytes.addAndGet(record.getSize() + averageEntrySize());
+                    data.remove(id);
+                    break;
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Write the queued records and close the repository file. The repository cannot be written after the call.
+     */
+    void close() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Copy the region of the source file to the end of the target file.
+     *
+     * @return number of copied bytes
+     */
+    private long copy(FileChannel source, long start, long end, FileChannel target) throws IOException {
+        long position = start;
+        while (position < end) {
+            position += source.transferTo(position, end - position, target);
+        }
+        return end - start;
+    }
+
+    private void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private FieldIndex getIndex(String fieldName) {
+        FieldIndex index = indexes.get(fieldName);
+        if (index == null) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' of class " + objectsType.getName()
+                    + " is not indexed");
+        }
+        return index;
+    }
+
+    /**
+     * Create the readonly object from the binary format.
+     */
+    private E readEntry(UUID id, byte[] bytes) {
+        return readEntry(id, bytes, serializer.getSchema());
+    }
+
+    /**
+     * Create the readonly object from the binary format of the given schema.
+     */
+    private E readEntry(UUID id, byte[] bytes, Schema schema) {
+        try {
+            E entry = constructor.newInstance();
+            entry.setId(id);
+            serializer.fillEntry(entry, bytes, schema);
+            readonlyField.set(entry, true);
+            return entry;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return a writable copy of the entry.
+     */
+    private E copy(E entry) {
+        E copiedEntry;
+        try {
+            copiedEntry = constructor.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        copiedEntry.setId(entry.getId());
+        copiedEntry.version = entry.version;
+        serializer.copy(entry, copiedEntry);
+        return copiedEntry;
+    }
+
+    /**
+     * Queue the record to the journal and start the optimization if there is too much garbage in the file.
+     *
+     * @param buf     the buffer containing the record from the position to the limit
+     * @param garbage estimated number of bytes in the file that the record makes useless, including itself
+     */
+    private CompletableFuture<Void> write(ByteBuf buf, long garbage) {
+        return write(buf, garbage, false);
+    }
+
+    /**
+     * Queue the record to the journal and start the optimization if there is too much garbage in the file.
+     *
+     * @param buf     the buffer containing the record from the position to the limit
+     * @param garbage estimated number of bytes in the file that the record makes useless, including itself
+     * @param force   force the file after the record regardless of the durability
+     */
+    private CompletableFuture<Void> write(ByteBuf buf, long garbage, boolean force) {
+        if (isPersistent) {
+            if (!isSchemaWritten) {
+                writeSchema();
+            }
+            int length = buf.getLimit() - buf.getPosition();
+            CompletableFuture<Void> written = force
+                    ? journal.appendAndForce(buf.array(), buf.getPosition(), length)
+                    : journal.append(buf.array(), buf.getPosition(), length);
+            garbageBytes.addAndGet(garbage);
+            optimizeIfNeeded();
+            return written;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Queue the schema record to the journal unless another writer has done it.
+     * The writers of the next records wait for it.
+     */
+    private synchronized void writeSchema() {
+        if (!isSchemaWritten) {
+            ByteBuf schemaRecord = schemaRecord();
+            journal.append(schemaRecord.array(), schemaRecord.getPosition(),
+                    schemaRecord.getLimit() - schemaRecord.getPosition());
+            isSchemaWritten = true;
+        }
+    }
+
+    /**
+     * Lock the writes of the entries with the given identifiers. The locks are taken in the order of their
+     * indexes, so writers of several entries do not deadlock.
+     *
+     * @return indexes of the taken locks for {@link #unlock(int[])}
+     */
+    int[] lock(Collection<UUID> ids) {
+        boolean[] isLocked = new boolean[LOCK_COUNT];
+        int count = 0;
+        for (UUID id : ids) {
+            int index = lockIndex(id);
+            if (!isLocked[index]) {
+                isLocked[index] = true;
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        for (int i = 0, j = 0; i < LOCK_COUNT; i++) {
+            if (isLocked[i]) {
+                locks[i].lock();
+                indexes[j++] = i;
             }
         }
-        if (!idFieldExisting) {
-            throw new RuntimeException("Error validating object class " + entry.getClass().getName() +
-                    ". Field annotated with 'Uuid' does not exist.");
+        return indexes;
+    }
+
+    void unlock(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            locks[indexes[i]].unlock();
+        }
+    }
+
+    /**
+     * Lock the writes of all entries.
+     */
+    private void lockAll() {
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = LOCK_COUNT - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    private Lock lockFor(UUID id) {
+        return locks[lockIndex(id)];
+    }
+
+    private static int lockIndex(UUID id) {
+        int hash = Objects.hashCode(id);
+        return (hash ^ hash >>> 16) & (LOCK_COUNT - 1);
+    }
+
+    private static List<UUID> idsOf(Collection<? extends RepositoryAccess> objects) {
+        List<UUID> ids = new ArrayList<>(objects.size());
+        for (RepositoryAccess object : objects) {
+            ids.add(object.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Return estimated number of bytes in the file that are needed to restore one object.
+     */
+    private long averageEntrySize() {
+        int size = data.size();
+        if (size == 0 || journal == null) {
+            return 0;
+        }
+        return Math.max(0, journal.getEnd() - garbageBytes.get()) / size;
+    }
+
+    /**
+     * Start the optimization in the background if the garbage ratio of the file exceeds the threshold.
+     */
+    private void optimizeIfNeeded() {
+        long fileSize = journal.getEnd();
+        if (fileSize < minOptimizationSize || garbageBytes.get() < fileSize * garbageRatio) {
+            return;
+        }
+        if (System.currentTimeMillis() < optimizationRetryTime) {
+            return;
+        }
+        if (isOptimizationScheduled.compareAndSet(false, true)) {
+            Thread thread = new Thread(() -> {
+                try {
+                    optimize();
+                    optimizationFailure = null;
+                    optimizationRetryDelay = 0;
+                    optimizationRetryTime = 0;
+                } catch (Throwable th) {
+                    // the error repeats while its cause persists, so the next writes do not retry at once
+                    optimizationFailure = th;
+                    optimizationRetryDelay = optimizationRetryDelay == 0 ? MIN_OPTIMIZATION_RETRY_DELAY
+                            : Math.min(optimizationRetryDelay * 2, MAX_OPTIMIZATION_RETRY_DELAY);
+                    optimizationRetryTime = System.currentTimeMillis() + optimizationRetryDelay;
+                } finally {
+                    isOptimizationScheduled.set(false);
+                }
+            });
+            thread.setName("optimization " + alias);
+            thread.setDaemon(true);
+            thread.start();
         }
     }
 
+    /**
+     * Return the error of the last automatic optimization. After a failure the automatic optimization
+     * is retried after a delay, from a minute to an hour.
+     *
+     * @return the error or {@code null} if the last automatic optimization succeeded or none was started
+     */
+    public Throwable getOptimizationFailure() {
+        return optimizationFailure;
+    }
+
+    /**
+     * Set the threshold of automatic optimization.
+     *
+     * @param garbageRatio        ratio of useless bytes in the file, 1 or more disables the optimization
+     * @param minOptimizationSize minimum file size for the optimization
+     */
+    void setOptimizationThreshold(double garbageRatio, long minOptimizationSize) {
+        this.garbageRatio = garbageRatio;
+        this.minOptimizationSize = minOptimizationSize;
+    }
+
+    private String getDataFilePath() {
+        return dataPath + separator + alias + ext;
+    }
+
+    /**
+     * Write the insert record of the entry to the record buffer of the current thread.
+     *
+     * @return the buffer containing the record from the position to the limit
+     */
+    private ByteBuf serializeEntry(E entry) {
+        ByteBuf buf = recordBuffer();
+        buf.setPosition(MAX_HEADER_SIZE);
+        serializer.fullFormat(entry, buf);
+        writeHeader(buf, INSERT, entry.getId());
+        return buf;
+    }
+
+    /**
+     * Append the record from the position to the limit of the record buffer to the batch.
+     */
+    private static void appendRecord(ByteBuf batch, ByteBuf record) {
+        batch.putArray(record.array(), record.getPosition(), record.getLimit() - record.getPosition());
+    }
+
+    /**
+     * Write the schema record of the entity class to a new buffer.
+     *
+     * @return the buffer containing the record from the position to the limit
+     */
+    private ByteBuf schemaRecord() {
+        ByteBuf buf = new ByteBuf();
+        buf.setPosition(MAX_HEADER_SIZE);
+        serializer.writeSchema(buf);
+        writeHeader(buf, SCHEMA, new UUID(0, 0));
+        return buf;
+    }
+
+    /**
+     * Return the cleared record buffer of the current thread.
+     */
+    private static ByteBuf recordBuffer() {
+        ByteBuf buf = recordBuffers.get();
+        if (buf.getCapacity() > MAX_RETAINED_BUFFER_SIZE) {
+            buf = new ByteBuf();
+            recordBuffers.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Write the header just before the data, which is written from {@link #MAX_HEADER_SIZE} to the limit,
+     * and set the position to the start of the record.
+     */
+    private void writeHeader(ByteBuf buf, RepositoryOperation operation, UUID id) {
+        int length = buf.getLimit() - MAX_HEADER_SIZE;
+        int bytesForLength = usefulBytes(length);
+        int start = MAX_HEADER_SIZE - (1 + 16 + 1 + bytesForLength);
+        buf.setPosition(start);
+        buf.putByte(operation.getCode());
+        buf.putUuid(id);
+        buf.putByte((byte) bytesForLength);
+        buf.putInt(length, bytesForLength);
+        buf.setPosition(start);
+    }
+
     /**
      * Return number of useful bytes in positive integer value. It does not work for negative.
      *
@@ -6,6 +6,11 @@ public abstract class RepositoryAccess {
 
     private transient boolean readonly = false;
 
+    /**
+     * Version stamp of the stored state, it is assigned by the repository on every write.
+     */
+    transient long version;
+
     protected void requireNonReadonly() {
         if (readonly) {
             throw new RuntimeException("This object is readonly");
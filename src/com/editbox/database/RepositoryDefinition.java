@@ -0,0 +1,94 @@
+package com.editbox.database;
+
+/**
+ * Definition of repository for registration in database.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-27
+ */
+public class RepositoryDefinition {
+
+    private final Class<? extends RepositoryAccess> type;
+
+    private final String alias;
+
+    private final boolean isPersistent;
+
+    private final Durability durability;
+
+    private final Storage storage;
+
+    /**
+     * Persistent repository with asynchronous durability.
+     *
+     * @param type  datatype
+     * @param alias name of repository file
+     */
+    public RepositoryDefinition(Class<? extends RepositoryAccess> type, String alias) {
+        this(type, alias, true);
+    }
+
+    /**
+     * Repository with asynchronous durability.
+     *
+     * @param type         datatype
+     * @param alias        name of repository file
+     * @param isPersistent save data to disk
+     */
+    public RepositoryDefinition(Class<? extends RepositoryAccess> type, String alias, boolean isPersistent) {
+        this(type, alias, isPersistent, Durability.async(), Storage.heap());
+    }
+
+    /**
+     * Persistent repository.
+     *
+     * @param type       datatype
+     * @param alias      name of repository file
+     * @param durability when writes are forced to disk
+     */
+    public RepositoryDefinition(Class<? extends RepositoryAccess> type, String alias, Durability durability) {
+        this(type, alias, true, durability, Storage.heap());
+    }
+
+    /**
+     * Persistent repository.
+     *
+     * @param type       datatype
+     * @param alias      name of repository file
+     * @param durability when writes are forced to disk
+     * @param storage    where the objects are kept in memory
+     */
+    public RepositoryDefinition(Class<? extends RepositoryAccess> type, String alias, Durability durability,
+                                Storage storage) {
+        this(type, alias, true, durability, storage);
+    }
+
+    private RepositoryDefinition(Class<? extends RepositoryAccess> type, String alias, boolean isPersistent,
+                                 Durability durability, Storage storage) {
+        this.type = type;
+        this.alias = alias;
+        this.isPersistent = isPersistent;
+        this.durability = durability;
+        this.storage = storage;
+    }
+
+    public Class<? extends RepositoryAccess> getType() {
+        return type;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public boolean isPersistent() {
+        return isPersistent;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+}
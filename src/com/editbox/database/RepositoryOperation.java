@@ -21,7 +21,18 @@ public enum RepositoryOperation {
     /**
      * Delete record.
      */
-    DELETE((byte) 0x02);
+    DELETE((byte) 0x02),
+
+    /**
+     * Schema record. The following insert and update records identify fields by their positions in the schema.
+     */
+    SCHEMA((byte) 0x03),
+
+    /**
+     * Transaction frame. The data contains the insert, update and delete records of a transaction,
+     * they are applied only if the transaction is committed in the transaction log.
+     */
+    TRANSACTION((byte) 0x04);
 
     private final byte code;
 
@@ -33,6 +44,10 @@ public enum RepositoryOperation {
                 return UPDATE;
             case 0x02:
                 return DELETE;
+            case 0x03:
+                return SCHEMA;
+            case 0x04:
+                return TRANSACTION;
             default:
                 throw new RuntimeException("Invalid operation code " + code);
         }
@@ -0,0 +1,42 @@
+package com.editbox.database;
+
+/**
+ * The result of repository restore.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-27
+ */
+public class RestoreResult {
+
+    private String alias;
+    private long duration;
+    private int size;
+
+    private RestoreResult(String alias, long duration, int size) {
+        this.alias = alias;
+        this.duration = duration;
+        this.size = size;
+    }
+
+    public static RestoreResult ok(String alias, long duration, int size) {
+        return new RestoreResult(alias, duration, size);
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * Return duration of restore in milliseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Return number of restored objects.
+     */
+    public int getSize() {
+        return size;
+    }
+}
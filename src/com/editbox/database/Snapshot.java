@@ -0,0 +1,146 @@
+package com.editbox.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Consistent readonly view of a repository at the moment it was opened.
+ * <p>
+ * Writes of the repository are not blocked by the snapshot and are not visible in it. While snapshots are
+ * open, the repository keeps the previous states of the changed objects, so a snapshot should be closed
+ * as soon as the reads are finished. Use the instances only for reading! Do not use setters and subsequent update!
+ * <p>
+ * The snapshot is thread-safe. It is not supported for repositories stored off-heap.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-06
+ */
+public class Snapshot<E extends RepositoryAccess> implements AutoCloseable {
+
+    private final Repository<E> repository;
+
+    private final SnapshotStore<E> data;
+
+    private final long version;
+
+    private final Collection<E> values;
+
+    private volatile boolean isClosed;
+
+    /**
+     * The number of objects or -1 if it is not counted yet.
+     */
+    private volatile int size = -1;
+
+    Snapshot(Repository<E> repository, SnapshotStore<E> data) {
+        this.repository = repository;
+        this.data = data;
+        this.version = data.openSnapshot();
+        this.values = data.values(version);
+    }
+
+    /**
+     * Return the readonly instance in the snapshot.
+     *
+     * @param entryId uuid of an instance of the class
+     * @return the instance or {@code null} if it does not exist in the snapshot
+     */
+    public E getForRead(UUID entryId) {
+        checkOpen();
+        if (entryId == null) {
+            return null;
+        }
+        return data.get(entryId, version);
+    }
+
+    /**
+     * Return the readonly all instances in the snapshot.
+     *
+     * @return list of instances
+     */
+    public List<E> getAllForRead() {
+        checkOpen();
+        return new ArrayList<>(values);
+    }
+
+    /**
+     * Perform the action for each readonly instance in the snapshot.
+     *
+     * @param action the action for each instance
+     */
+    public void forEach(Consumer<? super E> action) {
+        checkOpen();
+        values.forEach(action);
+    }
+
+    /**
+     * Return a sequential stream of the readonly instances in the snapshot.
+     * The stream should be consumed before the snapshot is closed.
+     *
+     * @return stream of instances
+     */
+    public Stream<E> stream() {
+        checkOpen();
+        return values.stream();
+    }
+
+    /**
+     * Return a parallel stream of the readonly instances in the snapshot.
+     * The stream should be consumed before the snapshot is closed.
+     *
+     * @return stream of instances
+     */
+    public Stream<E> parallelStream() {
+        checkOpen();
+        return values.parallelStream();
+    }
+
+    /**
+     * Create the query over the readonly instances in the snapshot.
+     * The query should be executed before the snapshot is closed.
+     *
+     * @return new query
+     */
+    public Query<E> query() {
+        checkOpen();
+        return new Query<>(values);
+    }
+
+    /**
+     * Return the number of instances in the snapshot. The instances are counted on the first call.
+     */
+    public int size() {
+        checkOpen();
+        int size = this.size;
+        if (size < 0) {
+            size = (int) values.stream().count();
+            this.size = size;
+        }
+        return size;
+    }
+
+    /**
+     * Close the snapshot and release the states of the objects that are not needed anymore.
+     * Closing a closed snapshot has no effect.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        }
+        repository.closeSnapshot(data, version);
+    }
+
+    private void checkOpen() {
+        if (isClosed) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.editbox.database;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Storage of the objects that can read them as they were when a snapshot was opened.
+ * <p>
+ * Opening and closing a snapshot must not be called concurrently with writes of the objects, the counts
+ * and the versions of the objects are changed by them without synchronization with the writers.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-06
+ */
+interface SnapshotStore<E extends RepositoryAccess> extends EntryStore<E> {
+
+    /**
+     * Open the snapshot of the objects stored before the call.
+     *
+     * @return the version of the snapshot
+     */
+    long openSnapshot();
+
+    /**
+     * Return the readonly object in the snapshot or {@code null}.
+     */
+    E get(UUID id, long snapshot);
+
+    /**
+     * Return the view of the objects in the snapshot.
+     */
+    Collection<E> values(long snapshot);
+
+    /**
+     * Close the snapshot. The states of the objects that are not needed by other snapshots can be released.
+     */
+    void closeSnapshot(long snapshot);
+}
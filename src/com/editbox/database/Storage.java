@@ -0,0 +1,49 @@
+package com.editbox.database;
+
+/**
+ * Storage of the objects of a repository in memory.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-02
+ */
+public class Storage {
+
+    private final boolean isOffHeap;
+
+    private final int cacheSize;
+
+    private Storage(boolean isOffHeap, int cacheSize) {
+        this.isOffHeap = isOffHeap;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Objects are stored in the heap. Reads return the stored objects.
+     */
+    public static Storage heap() {
+        return new Storage(false, 0);
+    }
+
+    /**
+     * Objects are stored in the binary format in direct memory outside the heap. Reads create the objects
+     * from the binary format, the objects read recently are kept in a cache of the given size.
+     * <p>
+     * The size of direct memory is limited by the JVM option {@code -XX:MaxDirectMemorySize}.
+     *
+     * @param cacheSize maximum number of objects in the cache, 0 disables the cache
+     */
+    public static Storage offHeap(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size should not be negative. Cache size = " + cacheSize);
+        }
+        return new Storage(true, cacheSize);
+    }
+
+    boolean isOffHeap() {
+        return isOffHeap;
+    }
+
+    int getCacheSize() {
+        return cacheSize;
+    }
+}
@@ -0,0 +1,190 @@
+package com.editbox.database;
+
+import com.editbox.database.serialize.ByteBuf;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Changes of several repositories that are applied together.
+ * <p>
+ * The changes are collected by {@link #add}, {@link #update} and {@link #delete} and are not visible
+ * until the commit. The commit locks the changed objects, validates all changes and applies them, or throws
+ * an exception and applies nothing. An object can be changed once in a transaction.
+ * <p>
+ * The changes of every repository are written to its file as one frame. After all frames are forced,
+ * the commit record is written to the transaction log of the database. On restore the frames without
+ * the commit record are skipped, so after a crash either all changes of the transaction are restored
+ * or none of them.
+ * <p>
+ * The changes are applied in memory only after the commit record is forced, and the changed objects stay
+ * locked until then. Other writes of these objects wait for the commit, so they are never written on top
+ * of changes that can be lost. If a frame or the commit record cannot be written, nothing is applied.
+ * <p>
+ * The transaction is not thread-safe and can be committed once.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-05
+ */
+public class Transaction {
+
+    private final UUID id = UUID.randomUUID();
+
+    private final TransactionLog log;
+
+    private final Map<Repository<?>, Changes<?>> changes = new LinkedHashMap<>();
+
+    private boolean isCommitted;
+
+    Transaction(TransactionLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Add the object to the repository on commit.
+     *
+     * @param repository a repository of the database
+     * @param object     a transient instance of the repository class
+     * @return this transaction
+     */
+    public <E extends RepositoryAccess> Transaction add(Repository<E> repository, E object) {
+        changesOf(repository).added.add(Objects.requireNonNull(object));
+        return this;
+    }
+
+    /**
+     * Update the instance with the identifier of the given detached instance on commit.
+     *
+     * @param repository a repository of the database
+     * @param newEntry   instance containing updated state, see {@link Repository#getForUpdate(UUID)}
+     * @return this transaction
+     */
+    public <E extends RepositoryAccess> Transaction update(Repository<E> repository, E newEntry) {
+        changesOf(repository).updated.add(Objects.requireNonNull(newEntry));
+        return this;
+    }
+
+    /**
+     * Remove the object from the repository on commit. A missing object is ignored.
+     *
+     * @param repository a repository of the database
+     * @param entryId    uuid of the instance to be removed
+     * @return this transaction
+     */
+    public Transaction delete(Repository<?> repository, UUID entryId) {
+        changesOf(repository).deleted.add(Objects.requireNonNull(entryId));
+        return this;
+    }
+
+    /**
+     * Apply the changes. The method returns after the transaction is committed durably, the changes are
+     * available for reading then.
+     */
+    public void commit() {
+        if (isCommitted) {
+            throw new IllegalStateException("Transaction is already committed");
+        }
+        isCommitted = true;
+        List<Repository<?>> repositories = new ArrayList<>(changes.keySet());
+        // repositories are always locked in the same order
+        repositories.sort(Comparator.comparing(Repository::getAlias));
+        List<int[]> locked = new ArrayList<>();
+        try {
+            for (Repository<?> repository : repositories) {
+                locked.add(repository.lock(changes.get(repository).getIds()));
+            }
+            for (Repository<?> repository : repositories) {
+                prepare(repository);
+            }
+            List<CompletableFuture<Void>> frames = new ArrayList<>();
+            List<String> aliases = new ArrayList<>();
+            for (Repository<?> repository : repositories) {
+                CompletableFuture<Void> frame = write(repository);
+                if (frame != null) {
+                    frames.add(frame);
+                    aliases.add(repository.getAlias());
+                }
+            }
+            if (!frames.isEmpty()) {
+                // the locks are held while the frames and the commit record are forced, the frames
+                // and the commit records of concurrent transactions are still forced together
+                Journal.await(CompletableFuture.allOf(frames.toArray(new CompletableFuture<?>[0])));
+                Journal.await(log.commit(id, aliases));
+            }
+            for (Repository<?> repository : repositories) {
+                apply(repository);
+            }
+        } finally {
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                repositories.get(i).unlock(locked.get(i));
+            }
+        }
+    }
+
+    private <E extends RepositoryAccess> void prepare(Repository<E> repository) {
+        repository.prepareTransaction(id, cast(changes.get(repository)));
+    }
+
+    private <E extends RepositoryAccess> CompletableFuture<Void> write(Repository<E> repository) {
+        return repository.writeTransaction(cast(changes.get(repository)));
+    }
+
+    private <E extends RepositoryAccess> void apply(Repository<E> repository) {
+        repository.applyTransaction(cast(changes.get(repository)));
+    }
+
+    private <E extends RepositoryAccess> Changes<E> changesOf(Repository<E> repository) {
+        if (isCommitted) {
+            throw new IllegalStateException("Transaction is already committed");
+        }
+        if (!repository.isTransactional(log)) {
+            throw new IllegalArgumentException("Repository " + repository.getAlias()
+                    + " is not registered in the database");
+        }
+        return cast(changes.computeIfAbsent(repository, r -> new Changes<>()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends RepositoryAccess> Changes<E> cast(Changes<?> changes) {
+        return (Changes<E>) changes;
+    }
+
+    /**
+     * Changes of one repository. The frame and the previous states are set by the repository on commit.
+     */
+    static class Changes<E extends RepositoryAccess> {
+
+        final List<E> added = new ArrayList<>();
+
+        final List<E> updated = new ArrayList<>();
+
+        final List<UUID> deleted = new ArrayList<>();
+
+        /**
+         * The frame record from the position to the limit or {@code null} if nothing is written.
+         */
+        ByteBuf frame;
+
+        /**
+         * The states of the updated and deleted objects before the transaction.
+         */
+        Map<UUID, E> oldEntries;
+
+        long garbage;
+
+        /**
+         * Return the identifiers of the changed objects.
+         */
+        List<UUID> getIds() {
+            List<UUID> ids = new ArrayList<>(added.size() + updated.size() + deleted.size());
+            for (E object : added) {
+                ids.add(object.getId());
+            }
+            for (E newEntry : updated) {
+                ids.add(newEntry.getId());
+            }
+            ids.addAll(deleted);
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.editbox.database;
+
+import com.editbox.database.serialize.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static java.io.File.separator;
+
+/**
+ * Commit records of the transactions over several repositories.
+ * <p>
+ * A transaction writes a frame with its changes to the file of every repository, and after the frames are
+ * forced, a commit record with the transaction id and the repository aliases to this log. A frame is applied
+ * on restore only if the log contains the commit record, so a crash never leaves a part of a transaction.
+ * Commit records of concurrent transactions are written and forced together.
+ * <p>
+ * A commit record is needed until every repository of the transaction is optimized, then the frame is replaced
+ * by the objects. The log is rewritten when most of its records are not needed.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-05
+ */
+class TransactionLog {
+
+    /**
+     * The log is rewritten when it has more records that are not needed than this number and the needed records.
+     */
+    private static final int MIN_REWRITE_COUNT = 1024;
+
+    private final String path;
+
+    private final String backupsPath;
+
+    private Journal journal;
+
+    /**
+     * Committed transactions whose frames can be in repository files.
+     */
+    private final Map<UUID, Commit> commits = new HashMap<>();
+
+    /**
+     * The number of the last commit.
+     */
+    private long sequence;
+
+    /**
+     * The number of records in the file that are not needed.
+     */
+    private int removedCount;
+
+    TransactionLog(String dataPath, String backupsPath) {
+        this.path = dataPath + separator + "_transactions.edb";
+        this.backupsPath = backupsPath;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // read the whole file, it contains only the transactions that are not optimized
+            }
+            ByteBuf buf = new ByteBuf(content.array());
+            int end = 0;
+            while (true) {
+                Commit commit = Commit.read(buf);
+                if (commit == null) {
+                    break;
+                }
+                commits.put(commit.id, commit);
+                end = buf.getPosition();
+            }
+            // the last record was not written completely, the transaction is not committed
+            channel.truncate(end);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading transaction log " + path, e);
+        }
+        this.journal = new Journal(path, Durability.sync());
+    }
+
+    /**
+     * Tells whether the transaction is committed. It is called on restore of repositories.
+     */
+    synchronized boolean isCommitted(UUID transactionId) {
+        return commits.containsKey(transactionId);
+    }
+
+    /**
+     * Write the commit record of the transaction. It should be called after the frames of the transaction
+     * are forced to the repository files.
+     *
+     * @param transactionId the transaction id
+     * @param aliases       aliases of the repositories with the frames of the transaction
+     * @return a future that is completed when the record is forced
+     */
+    synchronized CompletableFuture<Void> commit(UUID transactionId, Collection<String> aliases) {
+        Commit commit = new Commit(transactionId, new HashSet<>(aliases), ++sequence);
+        ByteBuf buf = new ByteBuf();
+        commit.write(buf);
+        CompletableFuture<Void> written = journal.append(buf.array(), 0, buf.getLimit());
+        commits.put(transactionId, commit);
+        return written;
+    }
+
+    /**
+     * Return the number of the last commit.
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Forget the repository in the transactions committed before the optimization of the repository,
+     * their frames are not in the repository file anymore.
+     *
+     * @param alias    the repository alias
+     * @param sequence the number of the last commit before the start of the optimization
+     */
+    synchronized void optimized(String alias, long sequence) {
+        Iterator<Commit> iterator = commits.values().iterator();
+        while (iterator.hasNext()) {
+            Commit commit = iterator.next();
+            if (commit.sequence <= sequence && commit.aliases.remove(alias) && commit.aliases.isEmpty()) {
+                iterator.remove();
+                removedCount++;
+            }
+        }
+        if (removedCount > MIN_REWRITE_COUNT && removedCount > commits.size()) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Copy the log to the backup directory.
+     */
+    void createBackup() {
+        long written = journal.flush();
+        String backupTodayPath = backupsPath + separator + LocalDate.now();
+        try {
+            Files.createDirectories(Paths.get(backupTodayPath));
+            try (FileChannel source = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(Paths.get(backupTodayPath, "_transactions.edb"),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while (position < written) {
+                    position += source.transferTo(position, written - position, target);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replace the log with the records that are needed.
+     */
+    private void rewrite() {
+        String newPath = path + '_';
+        ByteBuf buf = new ByteBuf();
+        for (Commit commit : commits.values()) {
+            commit.write(buf);
+        }
+        try (FileChannel target = FileChannel.open(Paths.get(newPath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(buf.array(), 0, buf.getLimit());
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            target.force(false);
+            journal.close();
+            Files.move(Paths.get(newPath), Paths.get(path), StandardCopyOption.ATOMIC_MOVE);
+            journal = new Journal(path, Durability.sync());
+            removedCount = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Error rewriting transaction log " + path, e);
+        }
+    }
+
+    private static class Commit {
+
+        private final UUID id;
+
+        /**
+         * Aliases of the repositories that can have the frame of the transaction.
+         */
+        private final Set<String> aliases;
+
+        /**
+         * The number of the commit in this process or 0 if it was committed before.
+         */
+        private final long sequence;
+
+        private Commit(UUID id, Set<String> aliases, long sequence) {
+            this.id = id;
+            this.aliases = aliases;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Write the record: the transaction id, the number of aliases and the aliases with their lengths.
+         */
+        private void write(ByteBuf buf) {
+            buf.putUuid(id);
+            buf.putShort((short) aliases.size());
+            for (String alias : aliases) {
+                buf.putShort((short) ByteBuf.getStringLength(alias));
+                buf.putString(alias);
+            }
+        }
+
+        /**
+         * Read the next record or return {@code null} if there is no complete record.
+         */
+        private static Commit read(ByteBuf buf) {
+            if (buf.getCapacity() - buf.getPosition() < 16 + 2) {
+                return null;
+            }
+            UUID id = buf.getUuid();
+            int size = buf.getShort();
+            Set<String> aliases = new HashSet<>();
+            for (int i = 0; i < size; i++) {
+                if (buf.getCapacity() - buf.getPosition() < 2) {
+                    return null;
+                }
+                int length = buf.getShort();
+                if (buf.getCapacity() - buf.getPosition() < length) {
+                    return null;
+                }
+                aliases.add(buf.getString(length));
+            }
+            return new Commit(id, aliases, 0);
+        }
+    }
+}
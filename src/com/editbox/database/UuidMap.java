@@ -0,0 +1,441 @@
+package com.editbox.database;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Hash map with {@link UUID} keys.
+ * <p>
+ * The map uses open addressing with linear probing. The halves of the keys are stored in two {@code long[]}
+ * arrays and the values in an {@code Object[]} array, so an entry does not need a node or a key object.
+ * The map is divided into segments by the key hash. Reads do not lock, writes lock the segment of the key.
+ * <p>
+ * A slot of a table is never reused for another key. The key is written to the slot before the value is
+ * published with release semantics, so a reader that sees the value sees the key. A removed value is replaced
+ * with a tombstone, and the segment is rehashed into a new table when the used slots exceed the load factor.
+ * Iteration is weakly consistent: values put or removed during the iteration may or may not be seen.
+ * Null values are not permitted.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-01
+ */
+class UuidMap<V> {
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private static final Object TOMBSTONE = new Object();
+
+    private static final int SEGMENT_BITS = 6;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    UuidMap() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    V get(UUID key) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        Table table = segmentFor(hash).table;
+        Object value = table.find(msb, lsb, (int) hash);
+        return value == null ? null : cast(value);
+    }
+
+    boolean containsKey(UUID key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Put the value and return the previous value or {@code null}.
+     */
+    V put(UUID key, V value) {
+        Objects.requireNonNull(value);
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        return cast(segmentFor(hash).put(msb, lsb, (int) hash, value));
+    }
+
+    /**
+     * Remove the value and return it or {@code null}.
+     */
+    V remove(UUID key) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        return cast(segmentFor(hash).remove(msb, lsb, (int) hash));
+    }
+
+    /**
+     * Replace the value if the current value is the expected instance.
+     *
+     * @return true if the value is replaced
+     */
+    boolean replace(UUID key, V expected, V value) {
+        Objects.requireNonNull(value);
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        return segmentFor(hash).replace(msb, lsb, (int) hash, expected, value);
+    }
+
+    /**
+     * Remove the value if the current value is the expected instance.
+     *
+     * @return true if the value is removed
+     */
+    boolean remove(UUID key, V expected) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        return segmentFor(hash).replace(msb, lsb, (int) hash, expected, TOMBSTONE);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (segment.size != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the view of the values. The view does not copy the values.
+     */
+    Collection<V> values() {
+        return new AbstractCollection<>() {
+
+            @Override
+            public Iterator<V> iterator() {
+                return Spliterators.iterator(spliterator());
+            }
+
+            @Override
+            public Spliterator<V> spliterator() {
+                return UuidMap.this.spliterator((msb, lsb, value) -> value);
+            }
+
+            @Override
+            public void forEach(Consumer<? super V> action) {
+                spliterator().forEachRemaining(action);
+            }
+
+            @Override
+            public int size() {
+                return UuidMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return UuidMap.this.isEmpty();
+            }
+        };
+    }
+
+    /**
+     * Return the spliterator over the entries mapped by the given function. Entries mapped to {@code null}
+     * are skipped.
+     */
+    <T> Spliterator<T> spliterator(EntryMapper<? super V, ? extends T> mapper) {
+        return new EntrySpliterator<>(mapper);
+    }
+
+    /**
+     * Function of a key and a value.
+     */
+    interface EntryMapper<V, T> {
+
+        T map(long msb, long lsb, V value);
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    /**
+     * Mix all bits of the key. The low bits select the slot and the high bits select the segment.
+     */
+    private static long hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V) value;
+    }
+
+    private static class Segment {
+
+        private volatile Table table = new Table(MIN_CAPACITY);
+
+        /**
+         * The number of values.
+         */
+        private volatile int size;
+
+        /**
+         * The number of slots with a value or a tombstone.
+         */
+        private int used;
+
+        private synchronized Object put(long msb, long lsb, int hash, Object value) {
+            Table table = this.table;
+            int mask = table.values.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object current = table.values[i];
+                if (current == null) {
+                    break;
+                }
+                if (table.msbs[i] == msb && table.lsbs[i] == lsb && current != TOMBSTONE) {
+                    VALUES.setRelease(table.values, i, value);
+                    return current;
+                }
+            }
+            if (used + 1 > table.values.length * 3 / 4) {
+                table = rehash(size + 1);
+                mask = table.values.length - 1;
+            }
+            int i = hash & mask;
+            while (table.values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table.msbs[i] = msb;
+            table.lsbs[i] = lsb;
+            VALUES.setRelease(table.values, i, value);
+            used++;
+            size++;
+            return null;
+        }
+
+        private synchronized Object remove(long msb, long lsb, int hash) {
+            Table table = this.table;
+            int mask = table.values.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object current = table.values[i];
+                if (current == null) {
+                    return null;
+                }
+                if (table.msbs[i] == msb && table.lsbs[i] == lsb && current != TOMBSTONE) {
+                    VALUES.setRelease(table.values, i, TOMBSTONE);
+                    size--;
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Replace the expected value with the given value or the tombstone.
+         */
+        private synchronized boolean replace(long msb, long lsb, int hash, Object expected, Object value) {
+            Table table = this.table;
+            int mask = table.values.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object current = table.values[i];
+                if (current == null) {
+                    return false;
+                }
+                if (table.msbs[i] == msb && table.lsbs[i] == lsb && current != TOMBSTONE) {
+                    if (current != expected) {
+                        return false;
+                    }
+                    VALUES.setRelease(table.values, i, value);
+                    if (value == TOMBSTONE) {
+                        size--;
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Copy the values into a new table without tombstones and publish it.
+         * The old table is not changed, so the readers of the old table are not affected.
+         */
+        private Table rehash(int expectedSize) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            Table oldTable = this.table;
+            Table newTable = new Table(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < oldTable.values.length; j++) {
+                Object value = oldTable.values[j];
+                if (value == null || value == TOMBSTONE) {
+                    continue;
+                }
+                long msb = oldTable.msbs[j];
+                long lsb = oldTable.lsbs[j];
+                int i = (int) hash(msb, lsb) & mask;
+                while (newTable.values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                newTable.msbs[i] = msb;
+                newTable.lsbs[i] = lsb;
+                newTable.values[i] = value;
+            }
+            used = size;
+            this.table = newTable;
+            return newTable;
+        }
+    }
+
+    private static class Table {
+
+        private final long[] msbs;
+
+        private final long[] lsbs;
+
+        private final Object[] values;
+
+        private Table(int capacity) {
+            this.msbs = new long[capacity];
+            this.lsbs = new long[capacity];
+            this.values = new Object[capacity];
+        }
+
+        /**
+         * Return the value or {@code null}. The method does not lock.
+         */
+        private Object find(long msb, long lsb, int hash) {
+            int mask = values.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object value = VALUES.getAcquire(values, i);
+                if (value == null) {
+                    return null;
+                }
+                if (msbs[i] == msb && lsbs[i] == lsb && value != TOMBSTONE) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Spliterator over the slots of the segment tables taken at the start. The slots of all tables
+     * are numbered consecutively, and a split divides the range of the numbers.
+     */
+    private class EntrySpliterator<T> implements Spliterator<T> {
+
+        private static final int MIN_SPLIT_SIZE = 1 << 12;
+
+        private final EntryMapper<? super V, ? extends T> mapper;
+
+        private final Table[] tables;
+
+        /**
+         * The number of the first slot of every table and the total number of slots.
+         */
+        private final long[] offsets;
+
+        private long index;
+
+        private final long fence;
+
+        private int tableIndex;
+
+        private EntrySpliterator(EntryMapper<? super V, ? extends T> mapper) {
+            this.mapper = mapper;
+            this.tables = new Table[segments.length];
+            this.offsets = new long[segments.length + 1];
+            for (int i = 0; i < segments.length; i++) {
+                tables[i] = segments[i].table;
+                offsets[i + 1] = offsets[i] + tables[i].values.length;
+            }
+            this.fence = offsets[segments.length];
+        }
+
+        private EntrySpliterator(EntryMapper<? super V, ? extends T> mapper, Table[] tables, long[] offsets,
+                                 long index, long fence, int tableIndex) {
+            this.mapper = mapper;
+            this.tables = tables;
+            this.offsets = offsets;
+            this.index = index;
+            this.fence = fence;
+            this.tableIndex = tableIndex;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (index < fence) {
+                while (index >= offsets[tableIndex + 1]) {
+                    tableIndex++;
+                }
+                T result = map(tables[tableIndex], (int) (index - offsets[tableIndex]));
+                index++;
+                if (result != null) {
+                    action.accept(result);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (index < fence) {
+                while (index >= offsets[tableIndex + 1]) {
+                    tableIndex++;
+                }
+                Table table = tables[tableIndex];
+                int end = (int) (Math.min(fence, offsets[tableIndex + 1]) - offsets[tableIndex]);
+                for (int i = (int) (index - offsets[tableIndex]); i < end; i++) {
+                    T result = map(table, i);
+                    if (result != null) {
+                        action.accept(result);
+                    }
+                }
+                index = offsets[tableIndex] + end;
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (fence - index < MIN_SPLIT_SIZE) {
+                return null;
+            }
+            long middle = (index + fence) >>> 1;
+            EntrySpliterator<T> prefix = new EntrySpliterator<>(mapper, tables, offsets, index, middle, tableIndex);
+            index = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            long capacity = offsets[offsets.length - 1];
+            return capacity == 0 ? 0 : (long) ((double) (fence - index) * size() / capacity);
+        }
+
+        @Override
+        public int characteristics() {
+            return CONCURRENT | NONNULL;
+        }
+
+        private T map(Table table, int slot) {
+            Object value = VALUES.getAcquire(table.values, slot);
+            if (value == null || value == TOMBSTONE) {
+                return null;
+            }
+            return mapper.map(table.msbs[slot], table.lsbs[slot], cast(value));
+        }
+    }
+}
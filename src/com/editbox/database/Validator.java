@@ -0,0 +1,155 @@
+package com.editbox.database;
+
+import com.editbox.database.annotation.MaxLength;
+import com.editbox.database.annotation.NotNull;
+import com.editbox.database.annotation.Uuid;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validation of the annotated fields of an entity class.
+ * <p>
+ * The rules of {@link NotNull}, {@link Uuid} and {@link MaxLength} annotations are compiled once
+ * per entity class. The validation of an entry reads only the annotated fields through method handles.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-04
+ */
+class Validator {
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<Validator> VALIDATORS = new ClassValue<>() {
+
+        @Override
+        protected Validator computeValue(Class<?> type) {
+            return new Validator(type);
+        }
+    };
+
+    private final String className;
+
+    /**
+     * Rules of the annotated fields in the declaration order.
+     */
+    private final Rule[] rules;
+
+    private Validator(Class<?> type) {
+        this.className = type.getName();
+        List<Rule> rules = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            boolean isUuid = field.isAnnotationPresent(Uuid.class);
+            boolean isNotNull = isUuid || field.isAnnotationPresent(NotNull.class);
+            MaxLength maxLength = field.getAnnotation(MaxLength.class);
+            if (!isNotNull && maxLength == null) {
+                continue;
+            }
+            field.setAccessible(true);
+            try {
+                MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER);
+                rules.add(new Rule(field, getter, isNotNull, isUuid, maxLength == null ? -1 : maxLength.value()));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        this.rules = rules.toArray(new Rule[0]);
+    }
+
+    /**
+     * Return the validator of the class. It is created on the first call for the class.
+     */
+    static Validator of(Class<?> type) {
+        return VALIDATORS.get(type);
+    }
+
+    /**
+     * Check the annotated fields of the entry.
+     *
+     * @throws RuntimeException if the entry is not valid
+     */
+    void validate(Object entry) {
+        boolean idFieldExisting = false;
+        for (Rule rule : rules) {
+            Object value = rule.get(entry);
+            if (value == null) {
+                if (rule.isNotNull) {
+                    throw new RuntimeException("Error validating object class '" + className +
+                            "'. Field '" + rule.name + "' cannot be null.");
+                }
+                continue;
+            }
+            if (rule.isUuid) {
+                if (idFieldExisting) {
+                    throw new RuntimeException("Error validating object class '" + className +
+                            "'. Only one field can be annotated with 'Uuid'.");
+                }
+                idFieldExisting = true;
+            }
+            if (rule.maxLength >= 0) {
+                if (rule.typeName.equals("[B")) {
+                    if (((byte[]) value).length > rule.maxLength) {
+                        throw new RuntimeException("Error validating object class " + className +
+                                ". The maximum length of the field '" + rule.name + "' is " + rule.maxLength);
+                    }
+                } else if (rule.typeName.equals("java.lang.String")) {
+                    if (((String) value).length() > rule.maxLength) {
+                        throw new RuntimeException("Error serializing object class '" + className +
+                                "'. The maximum length of the field '" + rule.name + "' is " + rule.maxLength);
+                    }
+                } else {
+                    throw new RuntimeException("Error validating object class '" + className +
+                            "'. Annotation 'MaxLength' is not supported for type '" + rule.typeName + "'.");
+                }
+            }
+        }
+        if (!idFieldExisting) {
+            throw new RuntimeException("Error validating object class " + className +
+                    ". Field annotated with 'Uuid' does not exist.");
+        }
+    }
+
+    private static class Rule {
+
+        private final String name;
+
+        private final String typeName;
+
+        private final MethodHandle getter;
+
+        private final boolean isNotNull;
+
+        private final boolean isUuid;
+
+        /**
+         * The maximum length or -1 if the field is not annotated with {@link MaxLength}.
+         */
+        private final int maxLength;
+
+        private Rule(Field field, MethodHandle getter, boolean isNotNull, boolean isUuid, int maxLength) {
+            this.name = field.getName();
+            this.typeName = field.getType().getName();
+            this.getter = getter;
+            this.isNotNull = isNotNull;
+            this.isUuid = isUuid;
+            this.maxLength = maxLength;
+        }
+
+        private Object get(Object entry) {
+            try {
+                return (Object) getter.invokeExact(entry);
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.editbox.database.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+@Target({FIELD})
+@Retention(RUNTIME)
+public @interface Index {
+
+    /**
+     * The index type. Sorted index also supports range queries, its values should be comparable.
+     */
+    Type value() default Type.HASH;
+
+    enum Type {
+
+        /**
+         * Lookup by equal value.
+         */
+        HASH,
+
+        /**
+         * Lookup by equal value and by range of values.
+         */
+        SORTED
+    }
+}
@@ -0,0 +1,20 @@
+package com.editbox.database.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Previous names of the field. Values written to the repository file under these names are read into the field.
+ */
+@Target({FIELD})
+@Retention(RUNTIME)
+public @interface Renamed {
+
+    /**
+     * The previous names of the field.
+     */
+    String[] value();
+}
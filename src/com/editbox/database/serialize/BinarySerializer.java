@@ -1,335 +1,197 @@
 package com.editbox.database.serialize;
 
 import com.editbox.database.RepositoryAccess;
-import com.editbox.database.annotation.Uuid;
+import com.editbox.database.annotation.Renamed;
 
 import java.lang.reflect.Field;
-import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
-import java.time.*;
+import java.lang.reflect.Modifier;
 import java.util.*;
 
+/**
+ * Serializer of entries to the binary format.
+ * <p>
+ * The field codecs are created once in the constructor. The serialization of an entry
+ * does not use reflection. The serializer is immutable and can be used by many threads,
+ * {@link #of(Class)} returns the serializer shared by all repositories of the class.
+ * <p>
+ * Fields are identified by their position in the {@link Schema schema} of the entity class. The schema
+ * of a file lists the names of the fields, so the values are read into the fields with the same name
+ * or the name in {@link Renamed}, and the values of removed fields are skipped.
+ */
 public class BinarySerializer<E extends RepositoryAccess> implements Serializer<E> {
 
-    private static Map<Class, Map<Short, Field>> cacheFields = new HashMap<>();
+    private static final ClassValue<BinarySerializer<?>> SERIALIZERS = new ClassValue<>() {
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected BinarySerializer<?> computeValue(Class<?> type) {
+            return new BinarySerializer(type);
+        }
+    };
+
+    /**
+     * Codecs of all serializable fields in the declaration order.
+     */
+    private final FieldCodec[] codecs;
+
+    /**
+     * Codecs by the field name and the previous names.
+     */
+    private final Map<String, FieldCodec> codecsByName;
+
+    private final Schema schema;
+
+    private final Schema legacySchema;
+
+    /**
+     * Return the serializer of the class. It is created on the first call for the class.
+     *
+     * @param type the entity class
+     * @return the serializer
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends RepositoryAccess> BinarySerializer<E> of(Class<E> type) {
+        return (BinarySerializer<E>) SERIALIZERS.get(type);
+    }
+
+    public BinarySerializer(Class<E> type) {
+        List<FieldCodec> codecs = new ArrayList<>();
+        Map<String, FieldCodec> codecsByName = new HashMap<>();
+        Map<Short, FieldCodec> codecsByHash = new HashMap<>();
+        Set<Short> ambiguousHashes = new HashSet<>();
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                continue;
+            }
+            FieldCodec codec = FieldCodec.of(field, (short) codecs.size());
+            codecs.add(codec);
+            List<String> names = new ArrayList<>();
+            names.add(field.getName());
+            if (field.isAnnotationPresent(Renamed.class)) {
+                names.addAll(Arrays.asList(field.getAnnotation(Renamed.class).value()));
+            }
+            for (String name : names) {
+                if (codecsByName.put(name, codec) != null) {
+                    throw new RuntimeException("Error creating serializer of class '" + type.getName() +
+                            "'. Name '" + name + "' is used by several fields.");
+                }
+                FieldCodec previous = codecsByHash.put(FieldCodec.hashName(name), codec);
+                if (previous != null && previous != codec) {
+                    ambiguousHashes.add(FieldCodec.hashName(name));
+                }
+            }
+        }
+        this.codecs = codecs.toArray(new FieldCodec[0]);
+        this.codecsByName = Map.copyOf(codecsByName);
+        List<String> names = new ArrayList<>();
+        for (FieldCodec codec : this.codecs) {
+            names.add(codec.name);
+        }
+        this.schema = new Schema(List.copyOf(names), this.codecs);
+        this.legacySchema = new Schema(Map.copyOf(codecsByHash), Set.copyOf(ambiguousHashes));
+    }
+
+    /**
+     * Return the schema of the entity class. Entries are written with it.
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Return the schema of files written before the schema record.
+     */
+    public Schema getLegacySchema() {
+        return legacySchema;
+    }
+
+    /**
+     * Write the schema of the entity class at the position of the buffer.
+     */
+    public void writeSchema(ByteBuf buf) {
+        buf.putByte(Schema.VERSION);
+        buf.putShort((short) codecs.length);
+        for (FieldCodec codec : codecs) {
+            buf.putShort((short) ByteBuf.getStringLength(codec.name));
+            buf.putString(codec.name);
+        }
+    }
+
+    /**
+     * Read the schema written by {@link #writeSchema(ByteBuf)} and map its fields to the fields of the entity class.
+     */
+    public Schema readSchema(byte[] serializedSchema) {
+        ByteBuf buf = new ByteBuf(serializedSchema);
+        byte version = buf.getByte();
+        if (version != Schema.VERSION) {
+            throw new RuntimeException("Unsupported schema version " + version);
+        }
+        int size = buf.getShort();
+        List<String> names = new ArrayList<>(size);
+        FieldCodec[] fileCodecs = new FieldCodec[size];
+        for (int i = 0; i < size; i++) {
+            String name = buf.getString(buf.getShort());
+            names.add(name);
+            fileCodecs[i] = codecsByName.get(name);
+        }
+        return new Schema(names, fileCodecs);
+    }
 
     @Override
     public byte[] fullFormat(E entry) {
         ByteBuf buf = new ByteBuf();
-        Field[] fields = entry.getClass().getDeclaredFields();
-        try {
-            for (Field field : fields) {
-                field.setAccessible(true);
-                if (field.get(entry) == null || field.getAnnotation(Uuid.class) != null) {
-                    continue;
-                }
-                String typeName = field.getType().getName();
-                putFieldValue(buf, typeName, field, entry);
+        fullFormat(entry, buf);
+        return buf.toArray();
+    }
+
+    @Override
+    public void fullFormat(E entry, ByteBuf buf) {
+        for (FieldCodec codec : codecs) {
+            if (codec.isUuid || codec.isNull(entry)) {
+                continue;
             }
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException(e);
+            buf.putShort(codec.ordinal);
+            codec.write(buf, entry);
         }
-        return buf.toArray();
     }
 
+    @Override
     public byte[] formatDiff(E oldEntry, E newEntry) {
         ByteBuf buf = new ByteBuf();
-        Field[] fields = oldEntry.getClass().getDeclaredFields();
-        try {
-            for (Field field : fields) {
-                field.setAccessible(true);
-                if (field.get(oldEntry) == null && field.get(newEntry) == null) {
-                    continue;
-                }
-                if (field.get(oldEntry) != null && field.get(newEntry) == null) {
-                    buf.putShort(hashName(field.getName()));
-                    buf.putByte((byte) 0x7F);
-                    continue;
-                }
-                String typeName = field.getType().getName();
-                if (field.get(oldEntry) == null && field.get(newEntry) != null) {
-                    putFieldValue(buf, typeName, field, newEntry);
-                    continue;
-                }
-                boolean areEqual;
-                if (typeName.equals("[B")) {
-                    areEqual = Arrays.equals((byte[]) field.get(oldEntry), (byte[]) field.get(newEntry));
-                } else {
-                    areEqual = field.get(oldEntry).equals(field.get(newEntry));
-                }
-                if (!areEqual) {
-                    putFieldValue(buf, typeName, field, newEntry);
-                }
-            }
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException(e);
-        }
+        formatDiff(oldEntry, newEntry, buf);
         return buf.toArray();
     }
 
-    private void putFieldValue(ByteBuf buf, String typeName, Field field, E entry) throws ReflectiveOperationException {
-        buf.putShort(hashName(field.getName()));
-        boolean isPrimitive = field.getType().isPrimitive();
-        switch (typeName) {
-            case "boolean":
-            case "java.lang.Boolean":
-                buf.putBoolean(isPrimitive ? field.getBoolean(entry) : (Boolean) field.get(entry));
-                break;
-            case "byte":
-            case "java.lang.Byte":
-            case "short":
-            case "java.lang.Short":
-            case "int":
-            case "java.lang.Integer":
-            case "long":
-            case "java.lang.Long":
-                long longValue = isPrimitive ? field.getLong(entry) : ((Number) field.get(entry)).longValue();
-                if (longValue <= Byte.MAX_VALUE && longValue >= Byte.MIN_VALUE) {
-                    buf.putByte((byte) 0x02);
-                    buf.putByte((byte) longValue);
-                } else if (longValue <= Short.MAX_VALUE && longValue >= Short.MIN_VALUE) {
-                    buf.putByte((byte) 0x03);
-                    buf.putShort((short) longValue);
-                } else if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
-                    buf.putByte((byte) 0x04);
-                    buf.putInt((int) longValue);
-                } else {
-                    buf.putByte((byte) 0x05);
-                    buf.putLong(longValue);
-                }
-                break;
-            case "float":
-            case "java.lang.Float":
-                buf.putByte((byte) 0x06);
-                buf.putFloat(isPrimitive ? field.getFloat(entry) : (Float) field.get(entry));
-                break;
-            case "double":
-            case "java.lang.Double":
-                buf.putByte((byte) 0x07);
-                buf.putDouble(isPrimitive ? field.getDouble(entry) : (Double) field.get(entry));
-                break;
-            case "java.math.BigInteger":
-                buf.putByte((byte) 0x08);
-                String bigIntegerString = field.get(entry).toString();
-                buf.putByte((byte) bigIntegerString.length());
-                buf.putString(bigIntegerString, Byte.MAX_VALUE);
-                break;
-            case "java.math.BigDecimal":
-                buf.putByte((byte) 0x09);
-                String bigDecimalString = field.get(entry).toString();
-                buf.putByte((byte) bigDecimalString.length());
-                buf.putString(bigDecimalString, Byte.MAX_VALUE);
-                break;
-            case "[B":
-                byte[] blobValue = (byte[]) field.get(entry);
-                if (blobValue.length <= Byte.MAX_VALUE) {
-                    buf.putByte((byte) 0x0A); // Short Blob
-                    buf.putByte((byte) blobValue.length);
-                } else if (blobValue.length <= Short.MAX_VALUE) {
-                    buf.putByte((byte) 0x0B); // Medium Blob
-                    buf.putShort((short) blobValue.length);
-                } else {
-                    buf.putByte((byte) 0x0C); // Long Blob
-                    buf.putInt(blobValue.length);
-                }
-                buf.putArray(blobValue);
-                break;
-            case "java.lang.String":
-                String stringValue = field.get(entry).toString();
-                byte[] stringAsArray = stringValue.getBytes(StandardCharsets.UTF_8);
-                if (stringAsArray.length <= Byte.MAX_VALUE) {
-                    buf.putByte((byte) 0x0D); // Short String
-                    buf.putByte((byte) stringAsArray.length);
-                } else if (stringAsArray.length <= Short.MAX_VALUE) {
-                    buf.putByte((byte) 0x0E); // Medium String
-                    buf.putShort((short) stringAsArray.length);
-                } else {
-                    buf.putByte((byte) 0x0F); // Long String
-                    buf.putInt(stringAsArray.length);
-                }
-                buf.putArray(stringAsArray);
-                break;
-            case "java.util.Date":
-                buf.putByte((byte) 0x10);
-                buf.putLong(((Date) field.get(entry)).getTime());
-                break;
-            case "java.time.LocalDate":
-                buf.putByte((byte) 0x11);
-                buf.putLong(((LocalDate) field.get(entry)).toEpochDay(), 4);
-                break;
-            case "java.time.LocalTime":
-                buf.putByte((byte) 0x12);
-                buf.putLong(((LocalTime) field.get(entry)).toNanoOfDay(), 6);
-                break;
-            case "java.time.LocalDateTime":
-                buf.putByte((byte) 0x13);
-                LocalDateTime localDateTime = (LocalDateTime) field.get(entry);
-                buf.putLong(localDateTime.toLocalDate().toEpochDay(), 4);
-                buf.putLong(localDateTime.toLocalTime().toNanoOfDay(), 6);
-                break;
-            case "java.time.ZonedDateTime":
-                buf.putByte((byte) 0x14);
-                ZonedDateTime zonedDateTime = (ZonedDateTime) field.get(entry);
-                buf.putLong(zonedDateTime.toLocalDate().toEpochDay(), 4);
-                buf.putLong(zonedDateTime.toLocalTime().toNanoOfDay(), 6);
-                byte[] zone = zonedDateTime.getZone().toString().getBytes(StandardCharsets.UTF_8);
-                buf.putInt(zone.length, 1);
-                buf.putArray(zone);
-                break;
-            case "java.util.UUID":
-                buf.putByte((byte) 0x15);
-                buf.putUuid((UUID) field.get(entry));
-                break;
-            default:
-                throw new RuntimeException("Type " + typeName + " is not supported");
+    @Override
+    public void formatDiff(E oldEntry, E newEntry, ByteBuf buf) {
+        for (FieldCodec codec : codecs) {
+            codec.writeDiff(buf, oldEntry, newEntry);
         }
     }
 
     @Override
-    public void fillEntry(Class<E> clazz, E entry, byte[] serializedData) {
-        ByteBuf buf = new ByteBuf(serializedData);
-        Map<Short, Field> fields = getFields(clazz);
-        while (buf.getPosition() < buf.getCapacity()) {
-            short nameHash = buf.getShort();
-            Field field = fields.get(nameHash);
-            if (field != null) {
-                field.setAccessible(true);
-            }
-            byte dataTypeId = buf.getByte();
-            Object value = null;
-            long integerValue = 0;
-            boolean isInteger = false;
-            switch (dataTypeId) {
-                case 0x00: // False Boolean
-                    value = false;
-                    break;
-                case 0x01: // True Boolean
-                    value = true;
-                    break;
-                case 0x02: // Byte
-                    integerValue = buf.getByte();
-                    isInteger = true;
-                    break;
-                case 0x03: // Short
-                    integerValue = buf.getShort();
-                    isInteger = true;
-                    break;
-                case 0x04: // Integer
-                    integerValue = buf.getInt();
-                    isInteger = true;
-                    break;
-                case 0x05: // Long
-                    integerValue = buf.getLong();
-                    isInteger = true;
-                    break;
-                case 0x06: // Float
-                    value = buf.getFloat();
-                    break;
-                case 0x07: // Double
-                    value = buf.getDouble();
-                    break;
-                case 0x08: // BigInteger
-                    value = new BigInteger(buf.getString(buf.getByte()));
-                    break;
-                case 0x09: // BigDecimal
-                    value = new BigDecimal(buf.getString(buf.getByte()));
-                    break;
-                case 0x0A: // Short Blob (byte array)
-                    value = buf.getArray(buf.getByte());
-                    break;
-                case 0x0B: // Medium Blob (byte array)
-                    value = buf.getArray(buf.getShort());
-                    break;
-                case 0x0C: // Long Blob (byte array)
-                    value = buf.getArray(buf.getInt());
-                    break;
-                case 0x0D: // Short String
-                    value = buf.getString(buf.getByte());
-                    break;
-                case 0x0E: // Medium String
-                    value = buf.getString(buf.getShort());
-                    break;
-                case 0x0F: // Long String
-                    value = buf.getString(buf.getInt());
-                    break;
-                case 0x10: // Date
-                    value = new Date(buf.getLong());
-                    break;
-                case 0x11: // LocalDate
-                    value = LocalDate.ofEpochDay(buf.getInt());
-                    break;
-                case 0x12: // LocalTime
-                    value = LocalTime.ofNanoOfDay(buf.getLong(6));
-                    break;
-                case 0x13: // LocalDateTime
-                    LocalDate localDate = LocalDate.ofEpochDay(buf.getLong(4));
-                    LocalTime localTime = LocalTime.ofNanoOfDay(buf.getLong(6));
-                    value = LocalDateTime.of(localDate, localTime);
-                    break;
-                case 0x14: // ZonedDateTime
-                    LocalDate localDate2 = LocalDate.ofEpochDay(buf.getLong(4));
-                    LocalTime localTime2 = LocalTime.ofNanoOfDay(buf.getLong(6));
-                    int zoneIdSize = buf.getByte();
-                    ZoneId zone = ZoneId.of(buf.getString(zoneIdSize));
-                    value = ZonedDateTime.of(localDate2, localTime2, zone);
-                    break;
-                case 0x15: // UUID
-                    value = buf.getUuid();
-                    break;
-                case 0x7F: // Null
-                    value = null;
-                    break;
-                default:
-                    throw new RuntimeException("Type " + String.format("%02X", dataTypeId) + " is not supported");
-            }
-            try {
-                if (field != null) {
-                    if (isInteger) {
-                        switch (field.getType().getName()) {
-                            case "byte":
-                            case "java.lang.Byte":
-                                field.set(entry, (byte) integerValue);
-                                break;
-                            case "short":
-                            case "java.lang.Short":
-                                field.set(entry, (short) integerValue);
-                                break;
-                            case "int":
-                            case "java.lang.Integer":
-                                field.set(entry, (int) integerValue);
-                                break;
-                            case "long":
-                            case "java.lang.Long":
-                                field.set(entry, integerValue);
-                                break;
-                        }
-                    } else {
-                        field.set(entry, value);
-                    }
-                }
-            } catch (ReflectiveOperationException e) {
-                throw new RuntimeException(e);
-            }
+    public void copy(E source, E target) {
+        for (FieldCodec codec : codecs) {
+            codec.copy(source, target);
         }
     }
 
-    private Map<Short, Field> getFields(Class clazz) {
-        if (cacheFields.get(clazz) == null) {
-            Map<Short, Field> fields = new HashMap<>();
-            for (Field field : clazz.getDeclaredFields()) {
-                fields.put(hashName(field.getName()), field);
-            }
-            cacheFields.put(clazz, fields);
-        }
-        return cacheFields.get(clazz);
+    @Override
+    public void fillEntry(Class<E> clazz, E entry, byte[] serializedData) {
+        fillEntry(entry, serializedData, schema);
     }
 
-    private short hashName(String fieldName) {
-        int h = 0;
-        for (byte v : fieldName.getBytes(StandardCharsets.UTF_8)) {
-            h = 31 * h + (v & 0xff);
+    @Override
+    public void fillEntry(E entry, byte[] serializedData, Schema schema) {
+        ByteBuf buf = new ByteBuf(serializedData);
+        while (buf.getPosition() < buf.getCapacity()) {
+            FieldCodec codec = schema.get(buf.getShort());
+            byte dataTypeId = buf.getByte();
+            if (codec != null) {
+                codec.read(buf, dataTypeId, entry);
+            } else {
+                FieldCodec.readObject(buf, dataTypeId);
+            }
         }
-        return (short) h;
     }
 }
@@ -1,17 +1,28 @@
 package com.editbox.database.serialize;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 /**
  * A byte buffer with auto resize.
  * <p>
- * It stores data in a heap.
+ * It stores data in a heap. The array grows at least twice when it is full, so a buffer can be
+ * cleared and reused without new allocations. Numbers are big-endian, they are written and read
+ * with a single access to the array.
  *
  * @author Aleksandr Uhanov
  * @since 2018-09-21
  */
-public class ByteBuf {
+public class ByteBuf implements ByteReader {
+
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     /**
      * The content of this buffer.
@@ -89,7 +100,7 @@ public class ByteBuf {
             throw new IllegalArgumentException("Invalid position");
         }
         if (newPosition > capacity) {
-            resize(newPosition);
+            grow(newPosition);
         }
         if (limit < newPosition) {
             limit = newPosition;
@@ -116,7 +127,7 @@ public class ByteBuf {
             throw new IllegalArgumentException("Invalid position");
         }
         if (newLimit > capacity) {
-            resize(newLimit);
+            grow(newLimit);
         }
         if (limit < position) {
             position = newLimit;
@@ -133,7 +144,7 @@ public class ByteBuf {
      */
     public ByteBuf putByte(byte value) {
         if (position == capacity) {
-            resize(capacity * 2);
+            grow(position + 1);
         }
         data[position] = value;
         if (limit == position) {
@@ -143,14 +154,25 @@ public class ByteBuf {
         return this;
     }
 
+    /**
+     * Tells whether there are any bytes between the current position and the capacity.
+     *
+     * @return {@code true} if there is at least one byte to be read
+     */
+    @Override
+    public boolean hasRemaining() {
+        return position < capacity;
+    }
+
     /**
      * Reads the byte at this buffer's current position, and then increments the position.
      *
      * @return The byte at the buffer's current position
      */
+    @Override
     public byte getByte() {
         if (position == capacity) {
-            resize(capacity * 2);
+            grow(position + 1);
         }
         byte value = data[position];
         if (limit == position) {
@@ -190,8 +212,9 @@ public class ByteBuf {
      * @return This buffer
      */
     public ByteBuf putShort(short value) {
-        putByte((byte) (value >> 8));
-        putByte((byte) value);
+        ensureWritable(2);
+        SHORT.set(data, position, value);
+        advance(2);
         return this;
     }
 
@@ -202,7 +225,12 @@ public class ByteBuf {
      * @return The short value
      */
     public short getShort() {
-        return (short) (getByte() << 8 | getByte() & 0xFF);
+        if (position + 2 > capacity) {
+            return (short) (getByte() << 8 | getByte() & 0xFF);
+        }
+        short value = (short) SHORT.get(data, position);
+        advance(2);
+        return value;
     }
 
     /**
@@ -214,10 +242,9 @@ public class ByteBuf {
      * @return This buffer
      */
     public ByteBuf putInt(int value) {
-        putByte((byte) (value >> 24));
-        putByte((byte) (value >> 16));
-        putByte((byte) (value >> 8));
-        putByte((byte) value);
+        ensureWritable(4);
+        INT.set(data, position, value);
+        advance(4);
         return this;
     }
 
@@ -228,7 +255,12 @@ public class ByteBuf {
      * @return The int value
      */
     public int getInt() {
-        return getInt(4);
+        if (position + 4 > capacity) {
+            return getInt(4);
+        }
+        int value = (int) INT.get(data, position);
+        advance(4);
+        return value;
     }
 
     /**
@@ -254,6 +286,7 @@ public class ByteBuf {
      *
      * @return The int value
      */
+    @Override
     public int getInt(int length) {
         if (length < 0 || length > 4) {
             throw new IllegalArgumentException("Invalid length");
@@ -274,8 +307,9 @@ public class ByteBuf {
      * @return This buffer
      */
     public ByteBuf putLong(long value) {
-        putInt((int) (value >> 32));
-        putInt((int) value);
+        ensureWritable(8);
+        LONG.set(data, position, value);
+        advance(8);
         return this;
     }
 
@@ -285,8 +319,14 @@ public class ByteBuf {
      *
      * @return The int value
      */
+    @Override
     public long getLong() {
-        return getLong(8);
+        if (position + 8 > capacity) {
+            return getLong(8);
+        }
+        long value = (long) LONG.get(data, position);
+        advance(8);
+        return value;
     }
 
     /**
@@ -402,9 +442,22 @@ public class ByteBuf {
      * @return This buffer
      */
     public ByteBuf putArray(byte[] value) {
-        for (int i = 0; i < value.length; i++) {
-            putByte(value[i]);
-        }
+        return putArray(value, 0, value.length);
+    }
+
+    /**
+     * Writes the given part of the array of bytes into this buffer at the current
+     * position, and then increments the position.
+     *
+     * @param value  The array
+     * @param offset The offset of the first byte to be written
+     * @param length The number of bytes to be written
+     * @return This buffer
+     */
+    public ByteBuf putArray(byte[] value, int offset, int length) {
+        ensureWritable(length);
+        System.arraycopy(value, offset, data, position, length);
+        advance(length);
         return this;
     }
 
@@ -415,11 +468,12 @@ public class ByteBuf {
      *
      * @return The byte array at the buffer's current position
      */
+    @Override
     public byte[] getArray(int length) {
         byte[] result = new byte[length];
-        for (int i = 0; i < length; i++) {
-            result[i] = getByte();
-        }
+        ensureWritable(length);
+        System.arraycopy(data, position, result, 0, length);
+        advance(length);
         return result;
     }
 
@@ -431,10 +485,69 @@ public class ByteBuf {
      * @return This buffer
      */
     public ByteBuf putString(String value) {
-        putArray(value.getBytes(StandardCharsets.UTF_8));
+        int end = position + getStringLength(value);
+        if (end > capacity) {
+            grow(end);
+        }
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                data[position++] = (byte) c;
+            } else if (c < 0x800) {
+                data[position++] = (byte) (0xC0 | c >> 6);
+                data[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    data[position++] = (byte) (0xF0 | codePoint >> 18);
+                    data[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    data[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    data[position++] = (byte) (0x80 | codePoint & 0x3F);
+                } else {
+                    // malformed as in String.getBytes(UTF_8)
+                    data[position++] = '?';
+                }
+            } else {
+                data[position++] = (byte) (0xE0 | c >> 12);
+                data[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                data[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        if (limit < position) {
+            limit = position;
+        }
         return this;
     }
 
+    /**
+     * Returns the number of bytes of the given String in UTF-8.
+     *
+     * @param value The String
+     * @return The number of bytes written by {@link #putString(String)}
+     */
+    public static int getStringLength(String value) {
+        int length = value.length();
+        int result = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                result += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    result += 2;
+                    i++;
+                }
+            } else {
+                result += 2;
+            }
+        }
+        return result;
+    }
+
     /**
      * Writes the given String (or truncated string) into this buffer at the current position,
      * and then increments the position.
@@ -473,19 +586,64 @@ public class ByteBuf {
     }
 
     /**
-     * Returns the byte array that backs this buffer (optional operation).
+     * Sets the position and the limit to zero. The content and the capacity are not changed.
+     */
+    public void clear() {
+        position = 0;
+        limit = 0;
+    }
+
+    /**
+     * Returns the byte array that backs this buffer. The array is replaced when the buffer grows.
      * <p>
      * Modifications to this buffer's content will cause the returned
      * array's content to be modified, and vice versa.
      *
      * @return The array that backs this buffer
      */
+    public byte[] array() {
+        return data;
+    }
+
+    /**
+     * Returns a copy of the content of this buffer up to the limit.
+     *
+     * @return The new array
+     */
     public byte[] toArray() {
         byte[] newData = new byte[limit];
         System.arraycopy(data, 0, newData, 0, limit);
         return newData;
     }
 
+    /**
+     * Enlarge this byte buffer if it cannot receive n more bytes at the position.
+     */
+    private void ensureWritable(int length) {
+        if (position + length > capacity) {
+            grow(position + length);
+        }
+    }
+
+    /**
+     * Move the position after n bytes read or written.
+     */
+    private void advance(int length) {
+        position += length;
+        if (limit < position) {
+            limit = position;
+        }
+    }
+
+    /**
+     * Enlarge this byte buffer to at least the given capacity and at least twice.
+     *
+     * @param minCapacity required number of bytes in this buffer.
+     */
+    private void grow(int minCapacity) {
+        resize(Math.max(minCapacity, Math.max(capacity * 2, 16)));
+    }
+
     /**
      * Enlarge this byte buffer so that it can receive n more bytes.
      *
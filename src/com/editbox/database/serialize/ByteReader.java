@@ -0,0 +1,47 @@
+package com.editbox.database.serialize;
+
+/**
+ * Sequential reader of big-endian numbers and byte arrays.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-06
+ */
+public interface ByteReader {
+
+    /**
+     * Tells whether there are any bytes to be read.
+     *
+     * @return {@code true} if there is at least one byte to be read
+     */
+    boolean hasRemaining();
+
+    /**
+     * Reads the next byte.
+     *
+     * @return The byte
+     */
+    byte getByte();
+
+    /**
+     * Reads the next N bytes, composing them into an int value.
+     *
+     * @param length the number of bytes from 0 to 4
+     * @return The int value
+     */
+    int getInt(int length);
+
+    /**
+     * Reads the next eight bytes, composing them into a long value.
+     *
+     * @return The long value
+     */
+    long getLong();
+
+    /**
+     * Reads the next N bytes into a new array.
+     *
+     * @param length the number of bytes
+     * @return The byte array
+     */
+    byte[] getArray(int length);
+}
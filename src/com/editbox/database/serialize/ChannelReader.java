@@ -0,0 +1,171 @@
+package com.editbox.database.serialize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A reader of a region of a file channel.
+ * <p>
+ * The channel is read sequentially through a fixed-size direct window, so the memory used does not depend
+ * on the file size. Positions are counted in the file and can exceed {@link Integer#MAX_VALUE}.
+ * <p>
+ * A read past the end of the region throws {@link UncheckedIOException} caused by {@link EOFException}.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-25
+ */
+public class ChannelReader implements ByteReader {
+
+    /**
+     * The size of the window by default.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer window;
+
+    /**
+     * The file position of the first byte after the window.
+     */
+    private long windowEnd;
+
+    /**
+     * The file position after the last byte to be read.
+     */
+    private final long end;
+
+    /**
+     * Constructs a new {@link ChannelReader ChannelReader} reading the given region of the channel
+     * with the default window size.
+     *
+     * @param channel the file channel
+     * @param start   the file position of the first byte to be read
+     * @param end     the file position after the last byte to be read
+     */
+    public ChannelReader(FileChannel channel, long start, long end) {
+        this(channel, start, end, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs a new {@link ChannelReader ChannelReader} reading the given region of the channel.
+     *
+     * @param channel    the file channel
+     * @param start      the file position of the first byte to be read
+     * @param end        the file position after the last byte to be read
+     * @param windowSize the number of bytes read from the channel at once
+     */
+    public ChannelReader(FileChannel channel, long start, long end, int windowSize) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid region");
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size");
+        }
+        this.channel = channel;
+        this.window = ByteBuffer.allocateDirect(windowSize);
+        this.window.limit(0);
+        this.windowEnd = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the file position of the next byte to be read.
+     *
+     * @return The file position
+     */
+    public long getFilePosition() {
+        return windowEnd - window.remaining();
+    }
+
+    /**
+     * Tells whether there are any bytes between the current position and the end of the region.
+     *
+     * @return {@code true} if there is at least one byte to be read
+     */
+    @Override
+    public boolean hasRemaining() {
+        return window.hasRemaining() || windowEnd < end;
+    }
+
+    @Override
+    public byte getByte() {
+        if (!window.hasRemaining()) {
+            fill();
+        }
+        return window.get();
+    }
+
+    @Override
+    public int getInt(int length) {
+        if (length < 0 || length > 4) {
+            throw new IllegalArgumentException("Invalid length");
+        }
+        if (length == 4 && window.remaining() >= 4) {
+            return window.getInt();
+        }
+        int result = 0;
+        for (int i = 0; i < length; i++) {
+            result <<= 8;
+            result |= (getByte() & 0xFF);
+        }
+        return result;
+    }
+
+    @Override
+    public long getLong() {
+        if (window.remaining() >= 8) {
+            return window.getLong();
+        }
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result <<= 8;
+            result |= (getByte() & 0xFF);
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] getArray(int length) {
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            if (!window.hasRemaining()) {
+                fill();
+            }
+            int count = Math.min(length - offset, window.remaining());
+            window.get(result, offset, count);
+            offset += count;
+        }
+        return result;
+    }
+
+    /**
+     * Read the next part of the region into the window.
+     */
+    private void fill() {
+        if (windowEnd >= end) {
+            throw new UncheckedIOException(new EOFException("Unexpected end of file at position " + windowEnd));
+        }
+        window.clear();
+        if (end - windowEnd < window.capacity()) {
+            window.limit((int) (end - windowEnd));
+        }
+        try {
+            while (window.hasRemaining()) {
+                int count = channel.read(window, windowEnd + window.position());
+                if (count < 0) {
+                    throw new UncheckedIOException(new EOFException("Unexpected end of file at position "
+                            + (windowEnd + window.position())));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        window.flip();
+        windowEnd += window.remaining();
+    }
+}
@@ -0,0 +1,723 @@
+package com.editbox.database.serialize;
+
+import com.editbox.database.annotation.Uuid;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Compiled access to one field of an entity class.
+ * <p>
+ * Codecs are created once per entity class. They read and write the field through method handles
+ * adapted to the erased entity type, so the serialization does not use reflection and does not
+ * look at the field type.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-11-22
+ */
+abstract class FieldCodec {
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    /**
+     * The field name.
+     */
+    final String name;
+
+    /**
+     * The field identifier in the binary format: the position of the field in the schema.
+     */
+    final short ordinal;
+
+    /**
+     * The field is annotated with {@link Uuid}.
+     */
+    final boolean isUuid;
+
+    private FieldCodec(Field field, short ordinal) {
+        this.name = field.getName();
+        this.ordinal = ordinal;
+        this.isUuid = field.isAnnotationPresent(Uuid.class);
+    }
+
+    /**
+     * Create the codec of the field.
+     *
+     * @param field   a non-static field of an entity class
+     * @param ordinal the position of the field in the schema
+     * @return the codec
+     */
+    static FieldCodec of(Field field, short ordinal) {
+        field.setAccessible(true);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle getter;
+        MethodHandle setter;
+        try {
+            getter = lookup.unreflectGetter(field);
+            setter = lookup.unreflectSetter(field);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        String typeName = field.getType().getName();
+        switch (typeName) {
+            case "boolean":
+                return new BooleanCodec(field, ordinal, getter, setter);
+            case "byte":
+            case "short":
+            case "int":
+            case "long":
+                return new IntegerCodec(field, ordinal, getter, setter);
+            case "float":
+                return new FloatCodec(field, ordinal, getter, setter);
+            case "double":
+                return new DoubleCodec(field, ordinal, getter, setter);
+            case "java.lang.Boolean":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x00);
+            case "java.lang.Byte":
+            case "java.lang.Short":
+            case "java.lang.Integer":
+            case "java.lang.Long":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x02);
+            case "java.lang.Float":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x06);
+            case "java.lang.Double":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x07);
+            case "java.math.BigInteger":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x08);
+            case "java.math.BigDecimal":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x09);
+            case "[B":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x0A);
+            case "java.lang.String":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x0D);
+            case "java.util.Date":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x10);
+            case "java.time.LocalDate":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x11);
+            case "java.time.LocalTime":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x12);
+            case "java.time.LocalDateTime":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x13);
+            case "java.time.ZonedDateTime":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x14);
+            case "java.util.UUID":
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x15);
+            default:
+                // Unsupported types are rejected only when the value is written, like null values are skipped
+                return new ObjectCodec(field, ordinal, getter, setter, (byte) 0x7F);
+        }
+    }
+
+    /**
+     * Return the 16-bit hash of the field name.
+     *
+     * @param fieldName the field name
+     */
+    static short hashName(String fieldName) {
+        int h = 0;
+        for (byte v : fieldName.getBytes(StandardCharsets.UTF_8)) {
+            h = 31 * h + (v & 0xff);
+        }
+        return (short) h;
+    }
+
+    /**
+     * Check the field value is null. Primitive fields are never null.
+     */
+    abstract boolean isNull(Object entry);
+
+    /**
+     * Write the identifier, the data type identifier and the value of the field if the value of the new entry
+     * differs from the value of the old entry. A null value is written as the null data type.
+     */
+    abstract void writeDiff(ByteBuf buf, Object oldEntry, Object newEntry);
+
+    /**
+     * Write the data type identifier and the non-null field value of the entry.
+     */
+    abstract void write(ByteBuf buf, Object entry);
+
+    /**
+     * Set the field value of the source entry to the target entry. Mutable values are copied.
+     */
+    abstract void copy(Object source, Object target);
+
+    /**
+     * Read the value with the given data type identifier and set it to the field of the entry.
+     */
+    abstract void read(ByteBuf buf, byte dataTypeId, Object entry);
+
+    /**
+     * Write the data type identifier and the integer value in the smallest suitable size.
+     */
+    static void writeInteger(ByteBuf buf, long longValue) {
+        if (longValue <= Byte.MAX_VALUE && longValue >= Byte.MIN_VALUE) {
+            buf.putByte((byte) 0x02);
+            buf.putByte((byte) longValue);
+        } else if (longValue <= Short.MAX_VALUE && longValue >= Short.MIN_VALUE) {
+            buf.putByte((byte) 0x03);
+            buf.putShort((short) longValue);
+        } else if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+            buf.putByte((byte) 0x04);
+            buf.putInt((int) longValue);
+        } else {
+            buf.putByte((byte) 0x05);
+            buf.putLong(longValue);
+        }
+    }
+
+    /**
+     * Write the data type identifier and the non-null value of a reference type.
+     *
+     * @param dataType the first data type identifier of the value type
+     */
+    static void writeObject(ByteBuf buf, byte dataType, Object value) {
+        switch (dataType) {
+            case 0x00: // Boolean
+                buf.putBoolean((Boolean) value);
+                break;
+            case 0x02: // Byte, Short, Integer, Long
+                writeInteger(buf, ((Number) value).longValue());
+                break;
+            case 0x06: // Float
+                buf.putByte((byte) 0x06);
+                buf.putFloat((Float) value);
+                break;
+            case 0x07: // Double
+                buf.putByte((byte) 0x07);
+                buf.putDouble((Double) value);
+                break;
+            case 0x08: // BigInteger
+                buf.putByte((byte) 0x08);
+                String bigIntegerString = value.toString();
+                buf.putByte((byte) bigIntegerString.length());
+                buf.putString(bigIntegerString, Byte.MAX_VALUE);
+                break;
+            case 0x09: // BigDecimal
+                buf.putByte((byte) 0x09);
+                String bigDecimalString = value.toString();
+                buf.putByte((byte) bigDecimalString.length());
+                buf.putString(bigDecimalString, Byte.MAX_VALUE);
+                break;
+            case 0x0A: // Blob (byte array)
+                byte[] blobValue = (byte[]) value;
+                if (blobValue.length <= Byte.MAX_VALUE) {
+                    buf.putByte((byte) 0x0A); // Short Blob
+                    buf.putByte((byte) blobValue.length);
+                } else if (blobValue.length <= Short.MAX_VALUE) {
+                    buf.putByte((byte) 0x0B); // Medium Blob
+                    buf.putShort((short) blobValue.length);
+                } else {
+                    buf.putByte((byte) 0x0C); // Long Blob
+                    buf.putInt(blobValue.length);
+                }
+                buf.putArray(blobValue);
+                break;
+            case 0x0D: // String
+                String stringValue = (String) value;
+                int stringLength = ByteBuf.getStringLength(stringValue);
+                if (stringLength <= Byte.MAX_VALUE) {
+                    buf.putByte((byte) 0x0D); // Short String
+                    buf.putByte((byte) stringLength);
+                } else if (stringLength <= Short.MAX_VALUE) {
+                    buf.putByte((byte) 0x0E); // Medium String
+                    buf.putShort((short) stringLength);
+                } else {
+                    buf.putByte((byte) 0x0F); // Long String
+                    buf.putInt(stringLength);
+                }
+                buf.putString(stringValue);
+                break;
+            case 0x10: // Date
+                buf.putByte((byte) 0x10);
+                buf.putLong(((Date) value).getTime());
+                break;
+            case 0x11: // LocalDate
+                buf.putByte((byte) 0x11);
+                buf.putLong(((LocalDate) value).toEpochDay(), 4);
+                break;
+            case 0x12: // LocalTime
+                buf.putByte((byte) 0x12);
+                buf.putLong(((LocalTime) value).toNanoOfDay(), 6);
+                break;
+            case 0x13: // LocalDateTime
+                buf.putByte((byte) 0x13);
+                LocalDateTime localDateTime = (LocalDateTime) value;
+                buf.putLong(localDateTime.toLocalDate().toEpochDay(), 4);
+                buf.putLong(localDateTime.toLocalTime().toNanoOfDay(), 6);
+                break;
+            case 0x14: // ZonedDateTime
+                buf.putByte((byte) 0x14);
+                ZonedDateTime zonedDateTime = (ZonedDateTime) value;
+                buf.putLong(zonedDateTime.toLocalDate().toEpochDay(), 4);
+                buf.putLong(zonedDateTime.toLocalTime().toNanoOfDay(), 6);
+                byte[] zone = zonedDateTime.getZone().toString().getBytes(StandardCharsets.UTF_8);
+                buf.putInt(zone.length, 1);
+                buf.putArray(zone);
+                break;
+            case 0x15: // UUID
+                buf.putByte((byte) 0x15);
+                buf.putUuid((UUID) value);
+                break;
+            default:
+                throw new RuntimeException("Type " + value.getClass().getName() + " is not supported");
+        }
+    }
+
+    /**
+     * Read the integer value with the given data type identifier.
+     */
+    static long readInteger(ByteBuf buf, byte dataTypeId) {
+        switch (dataTypeId) {
+            case 0x02: // Byte
+                return buf.getByte();
+            case 0x03: // Short
+                return buf.getShort();
+            case 0x04: // Integer
+                return buf.getInt();
+            case 0x05: // Long
+                return buf.getLong();
+            default:
+                throw new RuntimeException("Type " + String.format("%02X", dataTypeId) + " is not integer");
+        }
+    }
+
+    /**
+     * Read the value with the given data type identifier. Integer values are returned as {@link Long}.
+     */
+    static Object readObject(ByteBuf buf, byte dataTypeId) {
+        switch (dataTypeId) {
+            case 0x00: // False Boolean
+                return false;
+            case 0x01: // True Boolean
+                return true;
+            case 0x02: // Byte
+            case 0x03: // Short
+            case 0x04: // Integer
+            case 0x05: // Long
+                return readInteger(buf, dataTypeId);
+            case 0x06: // Float
+                return buf.getFloat();
+            case 0x07: // Double
+                return buf.getDouble();
+            case 0x08: // BigInteger
+                return new BigInteger(buf.getString(buf.getByte()));
+            case 0x09: // BigDecimal
+                return new BigDecimal(buf.getString(buf.getByte()));
+            case 0x0A: // Short Blob (byte array)
+                return buf.getArray(buf.getByte());
+            case 0x0B: // Medium Blob (byte array)
+                return buf.getArray(buf.getShort());
+            case 0x0C: // Long Blob (byte array)
+                return buf.getArray(buf.getInt());
+            case 0x0D: // Short String
+                return buf.getString(buf.getByte());
+            case 0x0E: // Medium String
+                return buf.getString(buf.getShort());
+            case 0x0F: // Long String
+                return buf.getString(buf.getInt());
+            case 0x10: // Date
+                return new Date(buf.getLong());
+            case 0x11: // LocalDate
+                return LocalDate.ofEpochDay(buf.getInt());
+            case 0x12: // LocalTime
+                return LocalTime.ofNanoOfDay(buf.getLong(6));
+            case 0x13: // LocalDateTime
+                LocalDate localDate = LocalDate.ofEpochDay(buf.getLong(4));
+                LocalTime localTime = LocalTime.ofNanoOfDay(buf.getLong(6));
+                return LocalDateTime.of(localDate, localTime);
+            case 0x14: // ZonedDateTime
+                LocalDate localDate2 = LocalDate.ofEpochDay(buf.getLong(4));
+                LocalTime localTime2 = LocalTime.ofNanoOfDay(buf.getLong(6));
+                int zoneIdSize = buf.getByte();
+                ZoneId zone = ZoneId.of(buf.getString(zoneIdSize));
+                return ZonedDateTime.of(localDate2, localTime2, zone);
+            case 0x15: // UUID
+                return buf.getUuid();
+            case 0x7F: // Null
+                return null;
+            default:
+                throw new RuntimeException("Type " + String.format("%02X", dataTypeId) + " is not supported");
+        }
+    }
+
+    private RuntimeException notNullable() {
+        return new RuntimeException("Primitive field '" + name + "' cannot be null");
+    }
+
+    /**
+     * Field of type {@code boolean}.
+     */
+    private static class BooleanCodec extends FieldCodec {
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        private BooleanCodec(Field field, short ordinal, MethodHandle getter, MethodHandle setter) {
+            super(field, ordinal);
+            this.getter = getter.asType(MethodType.methodType(boolean.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+        }
+
+        @Override
+        boolean isNull(Object entry) {
+            return false;
+        }
+
+        @Override
+        void write(ByteBuf buf, Object entry) {
+            buf.putBoolean(get(entry));
+        }
+
+        @Override
+        void writeDiff(ByteBuf buf, Object oldEntry, Object newEntry) {
+            boolean value = get(newEntry);
+            if (get(oldEntry) != value) {
+                buf.putShort(ordinal);
+                buf.putBoolean(value);
+            }
+        }
+
+        @Override
+        void read(ByteBuf buf, byte dataTypeId, Object entry) {
+            if (dataTypeId == 0x7F) {
+                throw super.notNullable();
+            }
+            boolean value = (Boolean) readObject(buf, dataTypeId);
+            try {
+                setter.invokeExact(entry, value);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        @Override
+        void copy(Object source, Object target) {
+            try {
+                setter.invokeExact(target, get(source));
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        private boolean get(Object entry) {
+            try {
+                return (boolean) getter.invokeExact(entry);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+    }
+
+    /**
+     * Field of type {@code byte}, {@code short}, {@code int} or {@code long}.
+     */
+    private static class IntegerCodec extends FieldCodec {
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        private IntegerCodec(Field field, short ordinal, MethodHandle getter, MethodHandle setter) {
+            super(field, ordinal);
+            this.getter = MethodHandles.explicitCastArguments(getter, MethodType.methodType(long.class, Object.class));
+            this.setter = MethodHandles.explicitCastArguments(setter,
+                    MethodType.methodType(void.class, Object.class, long.class));
+        }
+
+        @Override
+        boolean isNull(Object entry) {
+            return false;
+        }
+
+        @Override
+        void write(ByteBuf buf, Object entry) {
+            writeInteger(buf, get(entry));
+        }
+
+        @Override
+        void writeDiff(ByteBuf buf, Object oldEntry, Object newEntry) {
+            long value = get(newEntry);
+            if (get(oldEntry) != value) {
+                buf.putShort(ordinal);
+                writeInteger(buf, value);
+            }
+        }
+
+        @Override
+        void read(ByteBuf buf, byte dataTypeId, Object entry) {
+            if (dataTypeId == 0x7F) {
+                throw super.notNullable();
+            }
+            long value = readInteger(buf, dataTypeId);
+            try {
+                setter.invokeExact(entry, value);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        @Override
+        void copy(Object source, Object target) {
+            try {
+                setter.invokeExact(target, get(source));
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        private long get(Object entry) {
+            try {
+                return (long) getter.invokeExact(entry);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+    }
+
+    /**
+     * Field of type {@code float}.
+     */
+    private static class FloatCodec extends FieldCodec {
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        private FloatCodec(Field field, short ordinal, MethodHandle getter, MethodHandle setter) {
+            super(field, ordinal);
+            this.getter = getter.asType(MethodType.methodType(float.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, float.class));
+        }
+
+        @Override
+        boolean isNull(Object entry) {
+            return false;
+        }
+
+        @Override
+        void write(ByteBuf buf, Object entry) {
+            buf.putByte((byte) 0x06);
+            buf.putFloat(get(entry));
+        }
+
+        @Override
+        void writeDiff(ByteBuf buf, Object oldEntry, Object newEntry) {
+            float value = get(newEntry);
+            if (Float.compare(get(oldEntry), value) != 0) {
+                buf.putShort(ordinal);
+                buf.putByte((byte) 0x06);
+                buf.putFloat(value);
+            }
+        }
+
+        @Override
+        void read(ByteBuf buf, byte dataTypeId, Object entry) {
+            if (dataTypeId != 0x06) {
+                throw new RuntimeException("Type " + String.format("%02X", dataTypeId) + " is not float");
+            }
+            float value = buf.getFloat();
+            try {
+                setter.invokeExact(entry, value);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        @Override
+        void copy(Object source, Object target) {
+            try {
+                setter.invokeExact(target, get(source));
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        private float get(Object entry) {
+            try {
+                return (float) getter.invokeExact(entry);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+    }
+
+    /**
+     * Field of type {@code double}.
+     */
+    private static class DoubleCodec extends FieldCodec {
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        private DoubleCodec(Field field, short ordinal, MethodHandle getter, MethodHandle setter) {
+            super(field, ordinal);
+            this.getter = getter.asType(MethodType.methodType(double.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, double.class));
+        }
+
+        @Override
+        boolean isNull(Object entry) {
+            return false;
+        }
+
+        @Override
+        void write(ByteBuf buf, Object entry) {
+            buf.putByte((byte) 0x07);
+            buf.putDouble(get(entry));
+        }
+
+        @Override
+        void writeDiff(ByteBuf buf, Object oldEntry, Object newEntry) {
+            double value = get(newEntry);
+            if (Double.compare(get(oldEntry), value) != 0) {
+                buf.putShort(ordinal);
+                buf.putByte((byte) 0x07);
+                buf.putDouble(value);
+            }
+        }
+
+        @Override
+        void read(ByteBuf buf, byte dataTypeId, Object entry) {
+            if (dataTypeId != 0x07) {
+                throw new RuntimeException("Type " + String.format("%02X", dataTypeId) + " is not double");
+            }
+            double value = buf.getDouble();
+            try {
+                setter.invokeExact(entry, value);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        @Override
+        void copy(Object source, Object target) {
+            try {
+                setter.invokeExact(target, get(source));
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        private double get(Object entry) {
+            try {
+                return (double) getter.invokeExact(entry);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+    }
+
+    /**
+     * Field of a reference type.
+     */
+    private static class ObjectCodec extends FieldCodec {
+
+        private final Class<?> type;
+
+        private final byte dataType;
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        private ObjectCodec(Field field, short ordinal, MethodHandle getter, MethodHandle setter, byte dataType) {
+            super(field, ordinal);
+            this.type = field.getType();
+            this.dataType = dataType;
+            this.getter = getter.asType(GETTER);
+            this.setter = setter.asType(SETTER);
+        }
+
+        @Override
+        boolean isNull(Object entry) {
+            return get(entry) == null;
+        }
+
+        @Override
+        void write(ByteBuf buf, Object entry) {
+            writeObject(buf, dataType, get(entry));
+        }
+
+        @Override
+        void writeDiff(ByteBuf buf, Object oldEntry, Object newEntry) {
+            Object oldValue = get(oldEntry);
+            Object newValue = get(newEntry);
+            if (newValue == oldValue) {
+                // a copied entry shares the immutable values, so unchanged values are usually the same instance
+                return;
+            }
+            if (newValue == null) {
+                buf.putShort(ordinal);
+                buf.putByte((byte) 0x7F);
+                return;
+            }
+            if (oldValue != null && (dataType == 0x0A
+                    ? Arrays.equals((byte[]) oldValue, (byte[]) newValue) : oldValue.equals(newValue))) {
+                return;
+            }
+            buf.putShort(ordinal);
+            writeObject(buf, dataType, newValue);
+        }
+
+        @Override
+        void read(ByteBuf buf, byte dataTypeId, Object entry) {
+            Object value = readObject(buf, dataTypeId);
+            if (value instanceof Long) {
+                long integerValue = (Long) value;
+                if (type == Byte.class) {
+                    value = (byte) integerValue;
+                } else if (type == Short.class) {
+                    value = (short) integerValue;
+                } else if (type == Integer.class) {
+                    value = (int) integerValue;
+                }
+            }
+            try {
+                setter.invokeExact(entry, value);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        @Override
+        void copy(Object source, Object target) {
+            Object value = get(source);
+            if (value != null) {
+                if (dataType == 0x0A) {
+                    value = ((byte[]) value).clone();
+                } else if (dataType == 0x10) {
+                    value = new Date(((Date) value).getTime());
+                } else if (dataType == 0x7F) {
+                    throw new RuntimeException("Type " + value.getClass().getName() + " is not supported");
+                }
+            }
+            try {
+                setter.invokeExact(target, value);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+
+        private Object get(Object entry) {
+            try {
+                return (Object) getter.invokeExact(entry);
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.editbox.database.serialize;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fields of serialized entries.
+ * <p>
+ * A schema maps field identifiers of the binary format to the fields of the entity class.
+ * Since the first schema version the identifier is the position of the field name in the schema,
+ * and the schema is written to the repository file before the records that use it. Files written
+ * before the schema identify fields by the hash of the name, they are read with the legacy schema.
+ *
+ * @author Aleksandr Uhanov
+ * @since 2019-12-03
+ */
+public class Schema {
+
+    /**
+     * Version of the schema format.
+     */
+    static final byte VERSION = 1;
+
+    /**
+     * Field names by position or {@code null} for the legacy schema.
+     */
+    private final List<String> names;
+
+    /**
+     * Codecs by position, {@code null} for the fields that do not exist in the entity class.
+     */
+    private final FieldCodec[] codecs;
+
+    private final Map<Short, FieldCodec> codecsByHash;
+
+    /**
+     * Hashes of several field names.
+     */
+    private final Set<Short> ambiguousHashes;
+
+    Schema(List<String> names, FieldCodec[] codecs) {
+        this.names = names;
+        this.codecs = codecs;
+        this.codecsByHash = null;
+        this.ambiguousHashes = null;
+    }
+
+    Schema(Map<Short, FieldCodec> codecsByHash, Set<Short> ambiguousHashes) {
+        this.names = null;
+        this.codecs = null;
+        this.codecsByHash = codecsByHash;
+        this.ambiguousHashes = ambiguousHashes;
+    }
+
+    /**
+     * Return the codec of the field or {@code null} if the entity class does not have the field.
+     */
+    FieldCodec get(short id) {
+        if (codecs != null) {
+            return id >= 0 && id < codecs.length ? codecs[id] : null;
+        }
+        if (ambiguousHashes.contains(id)) {
+            throw new RuntimeException("Several fields have the name hash " + id + ", the value cannot be read");
+        }
+        return codecsByHash.get(id);
+    }
+
+    List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Tells whether the schemas have the same fields in the same order.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Schema)) {
+            return false;
+        }
+        Schema schema = (Schema) o;
+        return names != null && names.equals(schema.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return names == null ? 0 : names.hashCode();
+    }
+}
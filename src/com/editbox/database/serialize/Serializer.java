@@ -4,7 +4,36 @@ public interface Serializer<E> {
 
     byte[] fullFormat(E entry);
 
+    /**
+     * Write the entry at the position of the buffer.
+     */
+    void fullFormat(E entry, ByteBuf buf);
+
     byte[] formatDiff(E oldEntry, E newEntry);
 
+    /**
+     * Write the changed fields at the position of the buffer.
+     */
+    void formatDiff(E oldEntry, E newEntry, ByteBuf buf);
+
     void fillEntry(Class<E> clazz, E entry, byte[] serializedData);
+
+    /**
+     * Set the field values of the source entry to the target entry without the binary format.
+     * Mutable values are copied.
+     */
+    void copy(E source, E target);
+
+    /**
+     * Fill the entry with the data written with the given schema.
+     */
+    void fillEntry(E entry, byte[] serializedData, Schema schema);
+
+    Schema getSchema();
+
+    Schema getLegacySchema();
+
+    void writeSchema(ByteBuf buf);
+
+    Schema readSchema(byte[] serializedSchema);
 }